@@ -0,0 +1,83 @@
+package es.codeurjc.webchat;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of visiting every recipient of a broadcast: the ConcurrentHashMap
+ * values that Chat used to iterate, the skip list that now indexes members by
+ * name, and the recipient array that broadcasts scan.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastIterationBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	private int members;
+
+	private DeliveryScheduler scheduler;
+	private ConcurrentMap<String, UserCallbackHandler> hashMap;
+	private ConcurrentMap<String, UserCallbackHandler> skipList;
+	private UserCallbackHandler[] array;
+
+	@Setup(Level.Trial)
+	public void createMembers() {
+		scheduler = new DeliveryScheduler(1);
+		hashMap = new ConcurrentHashMap<>();
+		skipList = new ConcurrentSkipListMap<>();
+		array = new UserCallbackHandler[members];
+		for (int i = 0; i < members; i++) {
+			UserCallbackHandler handler = new UserCallbackHandler(new NoOpUser("user-" + i), scheduler);
+			hashMap.put("user-" + i, handler);
+			skipList.put("user-" + i, handler);
+			array[i] = handler;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	@Benchmark
+	public void hashMapValues(Blackhole blackhole) {
+		for (UserCallbackHandler handler : hashMap.values()) {
+			blackhole.consume(handler);
+		}
+	}
+
+	@Benchmark
+	public void skipListValues(Blackhole blackhole) {
+		for (UserCallbackHandler handler : skipList.values()) {
+			blackhole.consume(handler);
+		}
+	}
+
+	@Benchmark
+	public void recipientArray(Blackhole blackhole) {
+		for (UserCallbackHandler handler : array) {
+			blackhole.consume(handler);
+		}
+	}
+}
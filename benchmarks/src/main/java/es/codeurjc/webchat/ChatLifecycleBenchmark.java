@@ -0,0 +1,77 @@
+package es.codeurjc.webchat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ChatManager.newChat and closeChat from several threads at once. With as
+ * many chats allowed as there are threads they only contend on the chat map
+ * and the capacity counter; with fewer, threads queue for capacity too.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ChatLifecycleBenchmark {
+
+	@Param({ "1", "4", "1000" })
+	private int maxChats;
+
+	private DeliveryScheduler scheduler;
+	private ChatManager chatManager;
+
+	// Each thread creates chats of its own, so they never share a name
+	@State(Scope.Thread)
+	public static class ChatNames {
+
+		private String prefix;
+		private long counter;
+
+		@Setup(Level.Trial)
+		public void choosePrefix() {
+			prefix = "chat-" + Thread.currentThread().getId() + "-";
+		}
+
+		String next() {
+			return prefix + counter++;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void createChatManager() {
+		scheduler = DeliveryScheduler.withDefaults();
+		chatManager = new ChatManager(maxChats, scheduler);
+		for (int i = 0; i < 10; i++) {
+			chatManager.newUser(new NoOpUser("user-" + i));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	@Benchmark
+	public Chat createAndCloseChat(ChatNames names) throws Exception {
+		Chat chat = chatManager.newChat(names.next(), 10, TimeUnit.SECONDS);
+		chatManager.closeChat(chat);
+		return chat;
+	}
+}
@@ -0,0 +1,87 @@
+package es.codeurjc.webchat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Events per millisecond that UserCallbackHandler gets from deliver to the
+ * user callback, queueing and draining included. Each invocation delivers a
+ * burst of events to every handler and waits until all of them have arrived;
+ * scores count the events of one handler, multiply by the number of handlers
+ * for the total.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeliveryThroughputBenchmark {
+
+	private static final int EVENTS_PER_HANDLER = 1000;
+
+	@Param({ "1", "64" })
+	private int handlers;
+
+	@Param({ "1", "32" })
+	private int batchSize;
+
+	private final AtomicLong received = new AtomicLong();
+
+	private DeliveryScheduler scheduler;
+	private UserCallbackHandler[] userHandlers;
+	private ChatEvent event;
+
+	@Setup(Level.Trial)
+	public void createHandlers() throws Exception {
+		// Room for a whole burst, so that no event is dropped
+		scheduler = new DeliveryScheduler(DeliveryScheduler.defaultWorkerThreads(), batchSize, false,
+				EVENTS_PER_HANDLER, OverflowPolicy.DROP_NEWEST);
+		userHandlers = new UserCallbackHandler[handlers];
+		for (int i = 0; i < handlers; i++) {
+			userHandlers[i] = new UserCallbackHandler(new NoOpUser("user-" + i) {
+				@Override
+				public void newMessage(Chat chat, User user, String message) {
+					received.incrementAndGet();
+				}
+			}, scheduler);
+		}
+		ChatManager chatManager = new ChatManager(1, scheduler);
+		event = ChatEvent.newMessage(chatManager.newChat("chat", 1, TimeUnit.SECONDS), new NoOpUser("sender"),
+				"Hello everybody!");
+	}
+
+	@TearDown(Level.Trial)
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EVENTS_PER_HANDLER)
+	public void deliverBurst() {
+		long expected = received.get() + (long) EVENTS_PER_HANDLER * handlers;
+		for (int i = 0; i < EVENTS_PER_HANDLER; i++) {
+			for (UserCallbackHandler handler : userHandlers) {
+				handler.deliver(event);
+			}
+		}
+		while (received.get() < expected) {
+			Thread.yield();
+		}
+	}
+}
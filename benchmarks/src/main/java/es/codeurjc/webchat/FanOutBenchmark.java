@@ -0,0 +1,66 @@
+package es.codeurjc.webchat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost for the sender of Chat.sendMessage depending on the size of the room:
+ * one event is built and handed to every member's queue, while the delivery
+ * workers drain the queues into no-op users in the background. With
+ * recentMessages, the chat also keeps its last messages for joining users.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+
+	@Param({ "10", "100", "1000", "10000" })
+	private int roomSize;
+
+	@Param({ "0", "50" })
+	private int recentMessages;
+
+	private DeliveryScheduler scheduler;
+	private Chat chat;
+	private User sender;
+
+	@Setup(Level.Trial)
+	public void fillRoom() throws Exception {
+		scheduler = DeliveryScheduler.withDefaults();
+		ChatManager chatManager = new ChatManager(1, scheduler);
+		chatManager.setRecentMessages(recentMessages, recentMessages);
+		chat = chatManager.newChat("room", 1, TimeUnit.SECONDS);
+		for (int i = 0; i < roomSize; i++) {
+			User user = new NoOpUser("user-" + i);
+			chatManager.newUser(user, false);
+			chat.addUser(user);
+		}
+		sender = chat.getUser("user-0");
+	}
+
+	@TearDown(Level.Trial)
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	@Benchmark
+	public void sendMessage() throws Throwable {
+		chat.sendMessage(sender, "Hello everybody!");
+	}
+}
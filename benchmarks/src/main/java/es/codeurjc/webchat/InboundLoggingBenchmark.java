@@ -0,0 +1,78 @@
+package es.codeurjc.webchat;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.TextMessage;
+
+/**
+ * Inbound message rate of ChatHandler with the former System.out.println of
+ * every payload against the sampled debug logging that replaced it. Standard
+ * output is redirected to a discarding stream, so the old variant still pays
+ * for the string concatenation and the PrintStream lock but not for the
+ * console itself: the real difference in production is larger.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class InboundLoggingBenchmark {
+
+	private static final TextMessage JOIN = new TextMessage("{\"chat\":\"benchmark\",\"user\":\"sender\"}");
+	private static final TextMessage MESSAGE = new TextMessage("{\"message\":\"Hello everybody!\",\"user\":\"sender\"}");
+
+	private ChatHandler handler;
+	private NoOpWebSocketSession session;
+	private PrintStream originalOut;
+
+	@Setup(Level.Trial)
+	public void joinChat() throws Exception {
+		originalOut = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}, true));
+
+		handler = new ChatHandler();
+		session = new NoOpWebSocketSession();
+		handler.handleTextMessage(session, JOIN);
+	}
+
+	@TearDown(Level.Trial)
+	public void restoreStdout() {
+		System.setOut(originalOut);
+	}
+
+	@Benchmark
+	public void printlnEveryPayload() throws Exception {
+		System.out.println("Message received: " + MESSAGE.getPayload());
+		handler.handleTextMessage(session, MESSAGE);
+	}
+
+	@Benchmark
+	public void sampledDebugLoggingOff() throws Exception {
+		handler.handleTextMessage(session, MESSAGE);
+	}
+}
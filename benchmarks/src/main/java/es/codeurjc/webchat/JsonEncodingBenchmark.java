@@ -0,0 +1,75 @@
+package es.codeurjc.webchat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.TextMessage;
+
+/**
+ * Cost of turning chat events into WebSocket frames: encoding a fresh event,
+ * reusing the frame an event already encoded, as every recipient after the
+ * first one does, and WebSocketUser's own callback path, which encodes and
+ * writes to a discarding session.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonEncodingBenchmark {
+
+	private static final String MESSAGE = "Hello everybody, this is a chat message of an ordinary length!";
+
+	private DeliveryScheduler scheduler;
+	private Chat chat;
+	private User sender;
+	private ChatEvent encodedEvent;
+	private WebSocketUser webSocketUser;
+
+	@Setup(Level.Trial)
+	public void createChat() throws Exception {
+		scheduler = new DeliveryScheduler(1);
+		chat = new ChatManager(1, scheduler).newChat("chat", 1, TimeUnit.SECONDS);
+		sender = new NoOpUser("sender");
+		encodedEvent = ChatEvent.newMessage(chat, sender, MESSAGE);
+		encodedEvent.toTextMessage();
+		webSocketUser = new WebSocketUser(new NoOpWebSocketSession(), "receiver", "007AFF");
+	}
+
+	@TearDown(Level.Trial)
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	@Benchmark
+	public TextMessage encodeMessage() {
+		return ChatEvent.newMessage(chat, sender, MESSAGE).toTextMessage();
+	}
+
+	@Benchmark
+	public TextMessage encodeSystemNotice() {
+		return ChatEvent.newUserInChat(chat, sender).toTextMessage();
+	}
+
+	@Benchmark
+	public TextMessage reuseEncodedMessage() {
+		return encodedEvent.toTextMessage();
+	}
+
+	@Benchmark
+	public void webSocketUserNewMessage() {
+		webSocketUser.newMessage(chat, sender, MESSAGE);
+	}
+}
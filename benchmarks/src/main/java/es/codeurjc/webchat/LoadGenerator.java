@@ -0,0 +1,228 @@
+package es.codeurjc.webchat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Starts the chat server on an ephemeral port and drives it through real
+ * WebSocket connections, sending the same join and message frames as
+ * static/index.html. Every message carries the time it was sent, so each
+ * recipient records the send to receive latency; client and server share the
+ * JVM and its clock.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar es.codeurjc.webchat.LoadGenerator \
+ *     --users=2000 --rooms=20 --distribution=zipf --rate=1 --duration=60
+ * </pre>
+ *
+ * Options: users (clients to connect), rooms, distribution of users over
+ * rooms (uniform or zipf), rate (messages per second sent by each user),
+ * warmup and duration in seconds. Any other --key=value is passed on to the
+ * server, e.g. --webchat.inbound.max-frame-length=8192.
+ */
+public class LoadGenerator {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private static final String PREFIX = "load:";
+
+	private final int users;
+	private final int rooms;
+	private final String distribution;
+	private final double rate;
+	private final int warmupSeconds;
+	private final int durationSeconds;
+
+	// Up to a minute, with three significant digits
+	private final Recorder latencies = new Recorder(TimeUnit.MINUTES.toNanos(1), 3);
+	private final Map<String, LongAdder> receivedPerRoom = new ConcurrentHashMap<>();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder sendFailures = new LongAdder();
+
+	private volatile boolean measuring;
+
+	public LoadGenerator(Map<String, String> options) {
+		this.users = Integer.parseInt(options.getOrDefault("users", "1000"));
+		this.rooms = Integer.parseInt(options.getOrDefault("rooms", "10"));
+		this.distribution = options.getOrDefault("distribution", "uniform");
+		this.rate = Double.parseDouble(options.getOrDefault("rate", "1"));
+		this.warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "5"));
+		this.durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		List<String> serverArgs = new ArrayList<>();
+		for (String arg : args) {
+			String[] option = arg.replaceFirst("^--", "").split("=", 2);
+			if (option[0].startsWith("webchat.") || option[0].startsWith("logging.")) {
+				serverArgs.add(arg);
+			} else {
+				options.put(option[0], option.length > 1 ? option[1] : "true");
+			}
+		}
+		new LoadGenerator(options).run(serverArgs);
+	}
+
+	public void run(List<String> serverArgs) throws Exception {
+		List<String> args = new ArrayList<>(serverArgs);
+		args.add("--server.port=0");
+		args.add("--webchat.max-chats=" + rooms);
+		args.add("--logging.level.root=WARN");
+
+		ConfigurableApplicationContext server = SpringApplication.run(App.class, args.toArray(new String[0]));
+		ScheduledExecutorService senders = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+		List<WebSocketSession> sessions = new ArrayList<>(users);
+		try {
+			int port = ((EmbeddedWebApplicationContext) server).getEmbeddedServletContainer().getPort();
+			String uri = "ws://localhost:" + port + "/chat";
+			System.out.printf("Server on port %d, connecting %d users to %d rooms (%s)%n", port, users, rooms,
+					distribution);
+
+			StandardWebSocketClient client = new StandardWebSocketClient();
+			String[] roomOfUser = assignRooms();
+			for (int i = 0; i < users; i++) {
+				WebSocketSession session = client.doHandshake(new Receiver(), uri).get(10, TimeUnit.SECONDS);
+				join(session, roomOfUser[i], "user-" + i);
+				sessions.add(session);
+			}
+
+			long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+			for (int i = 0; i < users; i++) {
+				WebSocketSession session = sessions.get(i);
+				String userName = "user-" + i;
+				String room = roomOfUser[i];
+				// Spread the first sends over a period so they do not all go out at once
+				long initialDelay = (long) (periodNanos * ((double) i / users));
+				senders.scheduleAtFixedRate(() -> send(session, room, userName), initialDelay, periodNanos,
+						TimeUnit.NANOSECONDS);
+			}
+
+			TimeUnit.SECONDS.sleep(warmupSeconds);
+			latencies.reset();
+			receivedPerRoom.clear();
+			sent.reset();
+			sendFailures.reset();
+			measuring = true;
+			TimeUnit.SECONDS.sleep(durationSeconds);
+			measuring = false;
+
+			report(latencies.getIntervalHistogram());
+		} finally {
+			senders.shutdownNow();
+			// Lets in-flight messages arrive before their recipients go away
+			TimeUnit.SECONDS.sleep(1);
+			for (WebSocketSession session : sessions) {
+				try {
+					session.close();
+				} catch (IOException e) {
+					// Closing anyway
+				}
+			}
+			TimeUnit.SECONDS.sleep(1);
+			server.close();
+		}
+	}
+
+	private String[] assignRooms() {
+		String[] roomOfUser = new String[users];
+		if ("zipf".equals(distribution)) {
+			// Room k gets a share of the users proportional to 1 / (k + 1)
+			double[] cumulative = new double[rooms];
+			double total = 0;
+			for (int k = 0; k < rooms; k++) {
+				total += 1.0 / (k + 1);
+				cumulative[k] = total;
+			}
+			int room = 0;
+			for (int i = 0; i < users; i++) {
+				double position = total * (i + 0.5) / users;
+				while (cumulative[room] < position) {
+					room++;
+				}
+				roomOfUser[i] = "room-" + room;
+			}
+		} else {
+			for (int i = 0; i < users; i++) {
+				roomOfUser[i] = "room-" + (i % rooms);
+			}
+		}
+		return roomOfUser;
+	}
+
+	private static void join(WebSocketSession session, String room, String userName) throws IOException {
+		ObjectNode join = mapper.createObjectNode();
+		join.put("chat", room);
+		join.put("user", userName);
+		join.put("lobby", true);
+		session.sendMessage(new TextMessage(join.toString()));
+	}
+
+	private void send(WebSocketSession session, String room, String userName) {
+		ObjectNode message = mapper.createObjectNode();
+		message.put("message", PREFIX + room + ":" + System.nanoTime());
+		message.put("user", userName);
+		try {
+			session.sendMessage(new TextMessage(message.toString()));
+			if (measuring) {
+				sent.increment();
+			}
+		} catch (IOException | RuntimeException e) {
+			sendFailures.increment();
+		}
+	}
+
+	private class Receiver extends TextWebSocketHandler {
+
+		@Override
+		protected void handleTextMessage(WebSocketSession session, TextMessage frame) throws Exception {
+			long receivedAt = System.nanoTime();
+			JsonNode message = mapper.readTree(frame.getPayload()).get("message");
+			if (message == null || !message.asText().startsWith(PREFIX) || !measuring) {
+				return;
+			}
+			String[] parts = message.asText().split(":");
+			latencies.recordValue(Math.max(0, receivedAt - Long.parseLong(parts[2])));
+			receivedPerRoom.computeIfAbsent(parts[1], room -> new LongAdder()).increment();
+		}
+	}
+
+	private void report(Histogram histogram) {
+		System.out.printf("%nSent %d messages in %d s (%.1f/s), %d send failures%n", sent.sum(), durationSeconds,
+				(double) sent.sum() / durationSeconds, sendFailures.sum());
+		System.out.printf("Received %d messages (%.1f/s)%n", histogram.getTotalCount(),
+				(double) histogram.getTotalCount() / durationSeconds);
+		System.out.printf("Latency ms: p50=%.3f p99=%.3f p999=%.3f max=%.3f%n", millis(histogram, 50),
+				millis(histogram, 99), millis(histogram, 99.9), histogram.getMaxValue() / 1e6);
+		System.out.println("Received per room (/s):");
+		receivedPerRoom.entrySet().stream().sorted(Map.Entry.comparingByKey())
+				.forEach(room -> System.out.printf("  %s %.1f%n", room.getKey(),
+						(double) room.getValue().sum() / durationSeconds));
+	}
+
+	private static double millis(Histogram histogram, double percentile) {
+		return histogram.getValueAtPercentile(percentile) / 1e6;
+	}
+}
@@ -0,0 +1,44 @@
+package es.codeurjc.webchat;
+
+/**
+ * A user whose callbacks do nothing, so that benchmarks measure the chat
+ * machinery rather than a client.
+ */
+public class NoOpUser implements User {
+
+	private final String name;
+
+	public NoOpUser(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String getColor() {
+		return "007AFF";
+	}
+
+	@Override
+	public void newChat(Chat chat) {
+	}
+
+	@Override
+	public void chatClosed(Chat chat) {
+	}
+
+	@Override
+	public void newUserInChat(Chat chat, User user) {
+	}
+
+	@Override
+	public void userExitedFromChat(Chat chat, User user) {
+	}
+
+	@Override
+	public void newMessage(Chat chat, User user, String message) {
+	}
+}
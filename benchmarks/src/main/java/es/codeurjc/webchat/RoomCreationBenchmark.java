@@ -0,0 +1,63 @@
+package es.codeurjc.webchat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rate at which a chat can be created and closed again depending on how many
+ * users are registered. With every user in the lobby each creation costs one
+ * delivery per user; with nobody in it the cost no longer depends on the
+ * number of users.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoomCreationBenchmark {
+
+	@Param({ "100", "1000", "10000", "50000" })
+	private int users;
+
+	@Param({ "true", "false" })
+	private boolean lobby;
+
+	private DeliveryScheduler scheduler;
+	private ChatManager chatManager;
+	private long chatCounter;
+
+	@Setup(Level.Trial)
+	public void registerUsers() {
+		scheduler = DeliveryScheduler.withDefaults();
+		chatManager = new ChatManager(Integer.MAX_VALUE, scheduler);
+		for (int i = 0; i < users; i++) {
+			chatManager.newUser(new NoOpUser("user-" + i), lobby);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	@Benchmark
+	public Chat createAndCloseChat() throws Exception {
+		Chat chat = chatManager.newChat("chat-" + chatCounter++, 1, TimeUnit.SECONDS);
+		chat.close();
+		return chat;
+	}
+}
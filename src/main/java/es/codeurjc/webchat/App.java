@@ -1,24 +1,135 @@
 package es.codeurjc.webchat;
 
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
 
 @SpringBootApplication
 @EnableWebSocket
 public class App implements WebSocketConfigurer {
 
+	@Value("${webchat.max-chats:" + ChatHandler.DEFAULT_MAX_CHATS + "}")
+	private int maxChats;
+
+	@Value("${webchat.chat.empty-ttl-seconds:0}")
+	private long emptyChatTtlSeconds;
+
+	@Value("${webchat.session.grace-seconds:0}")
+	private long sessionGraceSeconds;
+
+	@Value("${webchat.lobby.notice-window-millis:0}")
+	private long lobbyNoticeWindowMillis;
+
+	@Value("${webchat.logging.payload-sample-rate:0}")
+	private int payloadSampleRate;
+
+	@Value("${webchat.tracing.sample-rate:0}")
+	private int traceSampleRate;
+
+	@Value("${webchat.history.dir:}")
+	private String historyDir;
+
+	@Value("${webchat.history.replay:20}")
+	private int historyReplay;
+
+	@Value("${webchat.history.segment-bytes:" + MessageLog.DEFAULT_SEGMENT_BYTES + "}")
+	private int historySegmentBytes;
+
+	@Value("${webchat.history.retention-bytes:" + MessageLog.DEFAULT_SEGMENT_BYTES * 4L + "}")
+	private long historyRetentionBytes;
+
+	@Value("${webchat.history.retention-hours:0}")
+	private long historyRetentionHours;
+
+	@Value("${webchat.recent-messages.per-chat:0}")
+	private int recentMessagesPerChat;
+
+	@Value("${webchat.recent-messages.total:0}")
+	private long recentMessagesTotal;
+
+	@Value("${webchat.binary.wire-ids-per-chat:" + WireIds.DEFAULT_CAPACITY + "}")
+	private int wireIdsPerChat;
+
+	// Clustering cannot be enabled yet. No ChatBus bean is defined, as the
+	// only bus so far, InProcessChatBus, connects nodes in the same JVM, as
+	// ClusterTest does. A bus between processes defined as a bean would be
+	// picked up here.
+	@Autowired(required = false)
+	private ChatBus chatBus;
+
+	@Value("${webchat.cluster.node-id:}")
+	private String nodeId;
+
+	@Value("${webchat.cluster.virtual-nodes:" + HashRing.DEFAULT_VIRTUAL_NODES + "}")
+	private int virtualNodes;
+
+	@Value("${webchat.inbound.max-frame-length:" + ClientCommandDecoder.DEFAULT_MAX_FRAME_LENGTH + "}")
+	private int maxFrameLength;
+
+	@Value("${webchat.compression.per-message-deflate:true}")
+	private boolean perMessageDeflate;
+
+	@Value("${webchat.compression.min-length:" + DeflateProtocol.DEFAULT_MIN_LENGTH + "}")
+	private int deflateMinLength;
+
+	@Bean(destroyMethod = "close")
+	public ChatManager chatManager() {
+		ChatManager chatManager = new ChatManager(maxChats, emptyChatTtlSeconds, TimeUnit.SECONDS);
+		chatManager.setLobbyNoticeWindow(lobbyNoticeWindowMillis, TimeUnit.MILLISECONDS);
+		chatManager.setDetachedUserGracePeriod(sessionGraceSeconds, TimeUnit.SECONDS);
+		chatManager.getMetrics().getTraceSampler().setSampleRate(traceSampleRate);
+		chatManager.setRecentMessages(recentMessagesPerChat, recentMessagesTotal);
+		chatManager.setWireIdsPerChat(wireIdsPerChat);
+		if (!historyDir.isEmpty()) {
+			chatManager.setMessageLog(messageLog(), historyReplay);
+		}
+		if (chatBus != null) {
+			chatManager.setChatBus(chatBus, nodeId.isEmpty() ? UUID.randomUUID().toString() : nodeId, virtualNodes);
+		}
+		return chatManager;
+	}
+
+	// Only created when a history directory is set
+	@Bean(destroyMethod = "close")
+	@Lazy
+	public MessageLog messageLog() {
+		return new MessageLog(new File(historyDir), historySegmentBytes, historyRetentionBytes,
+				historyRetentionHours, TimeUnit.HOURS);
+	}
+
 	@Bean
 	public ChatHandler chatHandler() {
-		return new ChatHandler();
+		ChatHandler chatHandler = new ChatHandler(chatManager(), new PayloadSampler(payloadSampleRate),
+				new ClientCommandDecoder(maxFrameLength), new BinaryCommandDecoder(maxFrameLength));
+		chatHandler.setDeflateMinLength(deflateMinLength);
+		return chatHandler;
+	}
+
+	// Lets the container refuse oversized frames before they are buffered
+	@Bean
+	public ServletServerContainerFactoryBean createWebSocketContainer() {
+		ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+		container.setMaxTextMessageBufferSize(maxFrameLength);
+		container.setMaxBinaryMessageBufferSize(maxFrameLength);
+		return container;
 	}
 
 	@Override
 	public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
-		registry.addHandler(chatHandler(), "/chat");
+		registry.addHandler(chatHandler(), "/chat")
+				.setHandshakeHandler(new DefaultHandshakeHandler(new CompressionUpgradeStrategy(perMessageDeflate)));
 	}
 
 	public static void main(String[] args) {
@@ -0,0 +1,66 @@
+package es.codeurjc.webchat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the frames sent by clients speaking the {@link BinaryProtocol}
+ * into {@link ClientCommand}s, the same ones the JSON frames decode to.
+ * Oversized frames are rejected before decoding starts.
+ */
+public class BinaryCommandDecoder {
+
+	private final int maxFrameLength;
+
+	public BinaryCommandDecoder() {
+		this(ClientCommandDecoder.DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	public BinaryCommandDecoder(int maxFrameLength) {
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	public ClientCommand decode(ByteBuffer frame) throws InvalidCommandException {
+		if (frame.remaining() > maxFrameLength) {
+			throw new InvalidCommandException(
+					"Frame of " + frame.remaining() + " bytes exceeds the limit of " + maxFrameLength);
+		}
+		if (!frame.hasRemaining()) {
+			throw new InvalidCommandException("Empty frame");
+		}
+
+		ByteBuffer in = frame.duplicate();
+		ClientCommand command;
+		byte type = in.get();
+		switch (type) {
+		case BinaryProtocol.JOIN:
+			String chat = BinaryProtocol.readString(in);
+			String user = BinaryProtocol.readString(in);
+			long flags = BinaryProtocol.readVarint(in);
+			Long lastSequence = null;
+			if ((flags & BinaryProtocol.JOIN_LAST_SEQUENCE) != 0) {
+				lastSequence = BinaryProtocol.readVarint(in);
+			}
+			String resumeToken = null;
+			if ((flags & BinaryProtocol.JOIN_RESUME_TOKEN) != 0) {
+				resumeToken = BinaryProtocol.readString(in);
+			}
+			command = new ClientCommand.Join(chat, user, (flags & BinaryProtocol.JOIN_LOBBY) != 0, lastSequence,
+					resumeToken);
+			break;
+		case BinaryProtocol.SEND:
+			command = new ClientCommand.Message(BinaryProtocol.readString(in));
+			break;
+		default:
+			throw new InvalidCommandException("Unknown frame type " + type);
+		}
+
+		if (in.hasRemaining()) {
+			throw new InvalidCommandException("Unexpected content after the command");
+		}
+		return command;
+	}
+}
@@ -0,0 +1,106 @@
+package es.codeurjc.webchat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The compact binary format spoken on /chat by clients that ask for the
+ * {@value #SUBPROTOCOL} subprotocol in their handshake; the others get JSON
+ * text frames. Every binary frame starts with its type byte, followed by its
+ * fields. Numbers are unsigned varints, seven bits per byte, least
+ * significant first. Strings are the varint length of their UTF-8 bytes
+ * followed by the bytes.
+ * <p>
+ * Names of users and chats and colors are sent as references: a varint id
+ * defined by an earlier DEFINE frame on the same connection, or 0 followed
+ * by the string itself when it has no id. The server sends the definition
+ * of an id right before the first frame that uses it. Ids are reused for
+ * other strings, in which case they are defined again; the latest
+ * definition stands.
+ *
+ * <pre>
+ * DEFINE       1  id, string
+ * MESSAGE      2  ref user, ref color, sequence + 1 (0 when it has none), string message
+ * NEW_CHAT     3  ref chat
+ * CHAT_CLOSED  4  ref chat
+ * USER_JOINED  5  ref chat, ref user
+ * USER_EXITED  6  ref chat, ref user
+ * SESSION      7  string resume token
+ *
+ * JOIN        16  string chat, string user, flags (1 lobby, 2 last sequence follows, 4 resume token
+ *                 follows), [last sequence], [string resume token]
+ * SEND        17  string message
+ * </pre>
+ */
+public final class BinaryProtocol {
+
+	public static final String SUBPROTOCOL = "webchat.bin.v1";
+
+	public static final byte DEFINE = 1;
+	public static final byte MESSAGE = 2;
+	public static final byte NEW_CHAT = 3;
+	public static final byte CHAT_CLOSED = 4;
+	public static final byte USER_JOINED = 5;
+	public static final byte USER_EXITED = 6;
+	public static final byte SESSION = 7;
+
+	public static final byte JOIN = 16;
+	public static final byte SEND = 17;
+
+	public static final int JOIN_LOBBY = 1;
+	public static final int JOIN_LAST_SEQUENCE = 2;
+	public static final int JOIN_RESUME_TOKEN = 4;
+
+	private BinaryProtocol() {
+	}
+
+	static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	static long readVarint(ByteBuffer in) throws InvalidCommandException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (!in.hasRemaining()) {
+				throw new InvalidCommandException("Frame ends in the middle of a number");
+			}
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new InvalidCommandException("Number longer than 64 bits");
+	}
+
+	static String readString(ByteBuffer in) throws InvalidCommandException {
+		long length = readVarint(in);
+		if (length > in.remaining()) {
+			throw new InvalidCommandException("String of " + length + " bytes exceeds the frame");
+		}
+		ByteBuffer bytes = in.slice();
+		bytes.limit((int) length);
+		in.position(in.position() + (int) length);
+		try {
+			CharBuffer chars = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT).decode(bytes);
+			return chars.toString();
+		} catch (CharacterCodingException e) {
+			throw new InvalidCommandException("String is not valid UTF-8", e);
+		}
+	}
+}
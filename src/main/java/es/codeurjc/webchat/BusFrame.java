@@ -0,0 +1,154 @@
+package es.codeurjc.webchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Something that happened in a chat on one node and is relayed through the
+ * {@link ChatBus} to the other nodes holding the same chat, or a request
+ * about a chat sent to the node that owns it, or its answer.
+ */
+public final class BusFrame {
+
+	public enum Type {
+		/** A message numbered by the owner of the chat, to every node holding it */
+		MESSAGE,
+		/** Also sent to a new owner for each member, after the nodes changed */
+		USER_JOINED,
+		USER_LEFT,
+		/** A message sent on another node, to the owner so that it numbers it */
+		FORWARD,
+		/** Asks the owner for capacity to hold the chat */
+		ADMIT,
+		ADMITTED,
+		REJECTED,
+		/** Hands a chat over to its new owner, with the messages kept in memory */
+		HANDOFF
+	}
+
+	private final Type type;
+	private final String chatName;
+	private final String userName;
+	private final String userColor;
+	private final String message;
+	private final long sequence;
+	private final String nodeId;
+	private final long timeoutMillis;
+	private final List<BusFrame> recentMessages;
+
+	private BusFrame(Type type, String chatName, String userName, String userColor, String message, long sequence,
+			String nodeId, long timeoutMillis) {
+		this(type, chatName, userName, userColor, message, sequence, nodeId, timeoutMillis,
+				Collections.emptyList());
+	}
+
+	private BusFrame(Type type, String chatName, String userName, String userColor, String message, long sequence,
+			String nodeId, long timeoutMillis, List<BusFrame> recentMessages) {
+		this.type = type;
+		this.chatName = chatName;
+		this.userName = userName;
+		this.userColor = userColor;
+		this.message = message;
+		this.sequence = sequence;
+		this.nodeId = nodeId;
+		this.timeoutMillis = timeoutMillis;
+		this.recentMessages = recentMessages;
+	}
+
+	public static BusFrame message(Chat chat, User user, String message, long sequence) {
+		return new BusFrame(Type.MESSAGE, chat.getName(), user.getName(), user.getColor(), message, sequence, null,
+				0);
+	}
+
+	public static BusFrame userJoined(Chat chat, User user, String nodeId) {
+		return new BusFrame(Type.USER_JOINED, chat.getName(), user.getName(), user.getColor(), null,
+				chat.getNextSequence(), nodeId, 0);
+	}
+
+	public static BusFrame userLeft(Chat chat, User user, String nodeId) {
+		return new BusFrame(Type.USER_LEFT, chat.getName(), user.getName(), user.getColor(), null, -1, nodeId, 0);
+	}
+
+	public static BusFrame forward(Chat chat, User user, String message) {
+		return new BusFrame(Type.FORWARD, chat.getName(), user.getName(), user.getColor(), message,
+				chat.getNextSequence(), null, 0);
+	}
+
+	public static BusFrame admit(String chatName, String nodeId, long timeoutMillis) {
+		return new BusFrame(Type.ADMIT, chatName, null, null, null, -1, nodeId, timeoutMillis);
+	}
+
+	public static BusFrame admitted(String chatName) {
+		return new BusFrame(Type.ADMITTED, chatName, null, null, null, -1, null, 0);
+	}
+
+	public static BusFrame rejected(String chatName) {
+		return new BusFrame(Type.REJECTED, chatName, null, null, null, -1, null, 0);
+	}
+
+	public static BusFrame handoff(Chat chat, long nextSequence) {
+		List<ChatEvent> events = chat.getRecentMessages();
+		List<BusFrame> recentMessages = new ArrayList<>(events.size());
+		for (ChatEvent event : events) {
+			recentMessages.add(message(chat, event.getUser(), event.getMessage(), event.getSequence()));
+		}
+		return new BusFrame(Type.HANDOFF, chat.getName(), null, null, null, nextSequence, null, 0,
+				recentMessages);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getChatName() {
+		return chatName;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public String getUserColor() {
+		return userColor;
+	}
+
+	/**
+	 * The text of a MESSAGE or FORWARD, null for anything else.
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * The number of a MESSAGE, or that of the next message of the chat for a
+	 * HANDOFF, and as far as the sending node knows for a USER_JOINED or a
+	 * FORWARD, -1 for anything else.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * The node an ADMIT, USER_JOINED or USER_LEFT comes from, null for anything
+	 * else.
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * How long the node sending an ADMIT waits for capacity.
+	 */
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * The messages the previous owner kept in memory, as MESSAGE frames oldest
+	 * first, for a HANDOFF, none for anything else.
+	 */
+	public List<BusFrame> getRecentMessages() {
+		return recentMessages;
+	}
+}
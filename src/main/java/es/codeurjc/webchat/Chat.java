@@ -1,22 +1,96 @@
 package es.codeurjc.webchat;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.stream.Collectors;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Chat {
 
 	private String name;
 
-	private ConcurrentMap<String, UserCallbackHandler> users = new ConcurrentHashMap<String, UserCallbackHandler>();
+	// Sorted by name so that rosters can be paged through
+	private ConcurrentNavigableMap<String, UserCallbackHandler> users = new ConcurrentSkipListMap<>();
+
+	// Broadcasts scan this array, which is replaced as a whole on every join
+	// or exit. Those are rare next to messages, so copying it is cheaper than
+	// walking the skip list for each message. Its length is the member count.
+	private volatile UserCallbackHandler[] recipients = new UserCallbackHandler[0];
+
+	private Collection<User> usersView = new UsersView(users.values(), () -> recipients.length);
 
 	private ChatManager chatManager;
 
+	private volatile long lastActivity = System.nanoTime();
+
+	private boolean closed;
+
+	private AtomicBoolean reapScheduled = new AtomicBoolean();
+
+	// Null unless the chat manager keeps a message history
+	private ChatLog history;
+
+	// Whether the history holds messages from before this chat was created,
+	// which are not in recentMessages
+	private boolean historyPredatesChat;
+
+	// Null unless the chat manager keeps recent messages in memory
+	private RecentMessages recentMessages;
+
+	// Without a history, messages are only kept in recentMessages, and
+	// broadcasts take the read lock, which only excludes joining users
+	// from the time a message is kept to the time its recipients are read
+	private ReadWriteLock replayLock = new ReentrantReadWriteLock();
+
+	private int reservedRecentMessages;
+
+	// Ids of the names and colors in the binary frames of this chat
+	private WireIds wireIds;
+
+	// Sequence number of the next message. With a history, it starts after
+	// the last offset in it, so that numbers carry on across restarts.
+	private AtomicLong nextSequence = new AtomicLong();
+
+	// Whether this node numbers the messages of the chat and is charged for
+	// it. In a cluster only the owner does; the others forward it messages.
+	private volatile boolean owned;
+
+	// Names of the members on other nodes, by node, as told by the frames
+	// they relay. The owner keeps the chat open while there are any.
+	private Map<String, Set<String>> remoteMembers = new HashMap<>();
+
 	public Chat(ChatManager chatManager, String name) {
+		this(chatManager, name, true);
+	}
+
+	Chat(ChatManager chatManager, String name, boolean owned) {
 		this.chatManager = chatManager;
 		this.name = name;
+		this.owned = owned;
+		MessageLog messageLog = chatManager.getMessageLog();
+		if (messageLog != null) {
+			this.history = messageLog.acquireChatLog(name);
+			this.historyPredatesChat = history.getNextOffset() > 0;
+			this.nextSequence.set(history.getNextOffset());
+		}
+		this.wireIds = chatManager.newChatWireIds();
+		this.reservedRecentMessages = chatManager.reserveRecentMessages();
+		if (reservedRecentMessages > 0) {
+			this.recentMessages = new RecentMessages(reservedRecentMessages);
+		}
 	}
 
 	public String getName() {
@@ -25,37 +99,538 @@ public class Chat {
 
 	public void addUser(User user) {
 
-		this.users.put(user.getName(), chatManager.getUserCallbackHandlerForUser(user));
-		for (UserCallbackHandler handler : this.users.values()) {
-			handler.newUserInChat(this, user);
+		UserCallbackHandler userHandler = chatManager.getUserCallbackHandlerForUser(user);
+		if (userHandler == null || userHandler.getHandledUser() != user) {
+			throw new IllegalArgumentException("User \'" + user.getName() + "\' is not registered");
+		}
+		List<LoggedMessage> historyRead = this.users.get(user.getName()) == userHandler ? null
+				: readHistoryBeforeReplay(chatManager.getHistoryReplayCount());
+		boolean added;
+		UserCallbackHandler previousHandler;
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("Chat \'" + name + "\' is closed");
+			}
+			previousHandler = this.users.put(user.getName(), userHandler);
+			added = previousHandler != userHandler;
+			if (added) {
+				UserCallbackHandler[] current = recipients;
+				UserCallbackHandler[] updated;
+				if (previousHandler == null) {
+					updated = Arrays.copyOf(current, current.length + 1);
+					updated[current.length] = userHandler;
+				} else {
+					// A user with the same name that was removed from the chat
+					// manager, but not yet from this chat, gives its place up
+					updated = replaced(current, previousHandler, userHandler);
+				}
+				// Messages kept so far went to the previous recipients, so the
+				// replay ends right where the live messages start
+				Lock lock = replayLock.writeLock();
+				lock.lock();
+				try {
+					if (history != null || recentMessages != null) {
+						replay(userHandler, history == null ? recentMessages.getCapacity()
+								: chatManager.getHistoryReplayCount(), historyRead);
+					}
+					recipients = updated;
+				} finally {
+					lock.unlock();
+				}
+			}
+			lastActivity = System.nanoTime();
+		}
+		if (added && previousHandler != null) {
+			previousHandler.exitedChat(this);
+		}
+		userHandler.joinedChat(this);
+		ChatEvent event = ChatEvent.newUserInChat(this, user);
+		for (UserCallbackHandler handler : this.recipients) {
+			handler.deliver(event);
+		}
+		if (added) {
+			chatManager.relay(BusFrame.userJoined(this, user, chatManager.getNodeId()));
 		}
 	}
 
 	public void removeUser(User user) {
-		this.users.remove(user.getName());
-		for (UserCallbackHandler handler : this.users.values()) {
-			handler.userExitedFromChat(this, user);
+		boolean empty;
+		UserCallbackHandler userHandler = this.users.get(user.getName());
+		if (userHandler == null || userHandler.getHandledUser() != user) {
+			return;
+		}
+		synchronized (this) {
+			if (!this.users.remove(user.getName(), userHandler)) {
+				return;
+			}
+			recipients = without(recipients, userHandler);
+			lastActivity = System.nanoTime();
+			empty = recipients.length == 0;
+		}
+		userHandler.exitedChat(this);
+		if (empty) {
+			chatManager.chatEmptied(this);
 		}
+		ChatEvent event = ChatEvent.userExitedFromChat(this, user);
+		for (UserCallbackHandler handler : this.recipients) {
+			handler.deliver(event);
+		}
+		chatManager.relay(BusFrame.userLeft(this, user, chatManager.getNodeId()));
+	}
+
+	/**
+	 * Hands the membership of a user whose connection dropped over to its new
+	 * handler, without telling anyone it left and came back. The handler is
+	 * sent the messages after lastSequence that the user missed, as far as
+	 * they are still kept, or, when lastSequence is null, the same messages
+	 * as a joining user. Returns false if the user was not in the chat.
+	 */
+	boolean resumeUser(UserCallbackHandler previousHandler, UserCallbackHandler userHandler, Long lastSequence) {
+		List<LoggedMessage> historyRead = readHistoryBeforeReplay(lastSequence == null
+				? chatManager.getHistoryReplayCount()
+				: (int) Math.min(getNextSequence() - (lastSequence + 1), chatManager.getGapFillLimit()));
+		synchronized (this) {
+			if (closed || !this.users.replace(previousHandler.getHandledUser().getName(), previousHandler,
+					userHandler)) {
+				return false;
+			}
+			UserCallbackHandler[] updated = replaced(recipients, previousHandler, userHandler);
+			Lock lock = replayLock.writeLock();
+			lock.lock();
+			try {
+				if (history != null || recentMessages != null) {
+					if (lastSequence == null) {
+						replay(userHandler, history == null ? recentMessages.getCapacity()
+								: chatManager.getHistoryReplayCount(), historyRead);
+					} else {
+						long missed = getNextSequence() - (lastSequence + 1);
+						if (missed > 0) {
+							replay(userHandler, (int) Math.min(missed, chatManager.getGapFillLimit()),
+									historyRead);
+						}
+					}
+				}
+				recipients = updated;
+			} finally {
+				lock.unlock();
+			}
+		}
+		userHandler.joinedChat(this);
+		return true;
 	}
 
+	WireIds getWireIds() {
+		return wireIds;
+	}
+
+	WireIds getLobbyWireIds() {
+		return chatManager.getLobbyWireIds();
+	}
+
+	long getNextSequence() {
+		return nextSequence.get();
+	}
+
+	// Recent messages are replayed as the events that were broadcast, with
+	// their frames already encoded. The history is only read when they do not
+	// go back far enough.
+	private void replay(UserCallbackHandler userHandler, int count, List<LoggedMessage> historyRead) {
+		List<ChatEvent> recent = recentMessages == null ? Collections.emptyList() : recentMessages.readLast(count);
+		if (recent.size() == count || !replaysHistory()) {
+			for (ChatEvent event : recent) {
+				userHandler.deliver(event);
+			}
+			return;
+		}
+		for (LoggedMessage message : readHistory(count, historyRead)) {
+			User author = new RecordedUser(message.getUserName(), message.getUserColor());
+			userHandler.deliver(ChatEvent.newMessage(this, author, message.getMessage(), null, message.getOffset()));
+		}
+	}
+
+	private boolean replaysHistory() {
+		return history != null
+				&& (recentMessages == null || !recentMessages.holdsAll() || historyPredatesChat);
+	}
+
+	// The history may have to be read from disk, so it is read before taking
+	// the lock of the chat, and only what was sent since is read with it
+	private List<LoggedMessage> readHistoryBeforeReplay(int count) {
+		if (count <= 0 || !replaysHistory()
+				|| (recentMessages != null && recentMessages.readLast(count).size() == count)) {
+			return null;
+		}
+		return history.readLast(count);
+	}
+
+	private List<LoggedMessage> readHistory(int count, List<LoggedMessage> historyRead) {
+		if (historyRead == null || historyRead.isEmpty()) {
+			return history.readLast(count);
+		}
+		List<LoggedMessage> messages = new ArrayList<>(historyRead);
+		messages.addAll(history.readLast(count, historyRead.get(historyRead.size() - 1).getOffset() + 1));
+		return messages.size() > count ? messages.subList(messages.size() - count, messages.size()) : messages;
+	}
+
+	private static int indexOf(UserCallbackHandler[] handlers, UserCallbackHandler handler) {
+		for (int i = 0; i < handlers.length; i++) {
+			if (handlers[i] == handler) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static UserCallbackHandler[] without(UserCallbackHandler[] handlers, UserCallbackHandler removed) {
+		int index = indexOf(handlers, removed);
+		if (index < 0) {
+			return handlers;
+		}
+		UserCallbackHandler[] updated = new UserCallbackHandler[handlers.length - 1];
+		System.arraycopy(handlers, 0, updated, 0, index);
+		System.arraycopy(handlers, index + 1, updated, index, handlers.length - index - 1);
+		return updated;
+	}
+
+	private static UserCallbackHandler[] replaced(UserCallbackHandler[] handlers, UserCallbackHandler previous,
+			UserCallbackHandler replacement) {
+		int index = indexOf(handlers, previous);
+		if (index < 0) {
+			UserCallbackHandler[] updated = Arrays.copyOf(handlers, handlers.length + 1);
+			updated[handlers.length] = replacement;
+			return updated;
+		}
+		UserCallbackHandler[] updated = handlers.clone();
+		updated[index] = replacement;
+		return updated;
+	}
+
+	/**
+	 * Live, read-only view of the members of the chat. It reflects joins and
+	 * exits as they happen, without copying; use getUsersSnapshot for a copy
+	 * that stays put.
+	 */
 	public Collection<User> getUsers() {
-		return Collections.unmodifiableCollection(users.values().stream().map(userHandler -> {
-			return userHandler.getHandledUser();
-		}).collect(Collectors.toList()));
+		return usersView;
+	}
+
+	public List<User> getUsersSnapshot() {
+		return Collections.unmodifiableList(new ArrayList<>(usersView));
+	}
+
+	/**
+	 * Returns up to limit members in name order, starting after the given name,
+	 * or from the first member when it is null.
+	 */
+	public List<User> getUsers(String after, int limit) {
+		Collection<UserCallbackHandler> handlers = after == null ? users.values()
+				: users.tailMap(after, false).values();
+		List<User> page = new ArrayList<>(Math.min(limit, recipients.length));
+		for (UserCallbackHandler handler : handlers) {
+			if (page.size() == limit) {
+				break;
+			}
+			page.add(handler.getHandledUser());
+		}
+		return page;
+	}
+
+	/**
+	 * Returns up to the last count messages sent to the chat, oldest first, or
+	 * none if the chat manager keeps no message history.
+	 */
+	public List<LoggedMessage> getHistory(int count) {
+		return history == null ? Collections.emptyList() : history.readLast(count);
+	}
+
+	/**
+	 * The messages kept in memory, oldest first, none if they are not kept.
+	 */
+	List<ChatEvent> getRecentMessages() {
+		return recentMessages == null ? Collections.emptyList() : recentMessages.readLast(recentMessages.getCapacity());
+	}
+
+	/**
+	 * Keeps the messages the previous owner of the chat kept, for users
+	 * joining it here, unless they are older than those kept here already.
+	 * They are not delivered, as the members here had them relayed.
+	 */
+	void restoreRecentMessages(List<BusFrame> messages) {
+		if (recentMessages == null) {
+			return;
+		}
+		for (BusFrame frame : messages) {
+			if (frame.getSequence() >= recentMessages.getEndSequence()) {
+				ChatEvent event = ChatEvent.newMessage(this,
+						new RecordedUser(frame.getUserName(), frame.getUserColor()), frame.getMessage(), null,
+						frame.getSequence());
+				event.shareTextMessage(event.toTextMessage());
+				recentMessages.add(event);
+			}
+		}
+	}
+
+	public int getUserCount() {
+		return recipients.length;
 	}
 
 	public User getUser(String name) {
-		return this.users.get(name).getHandledUser();
+		UserCallbackHandler handler = this.users.get(name);
+		return handler == null ? null : handler.getHandledUser();
 	}
 
 	public void sendMessage(User user, String message) throws Throwable {
+		sendMessage(user, message, null);
+	}
+
+	/**
+	 * Sends the message tracing its way to every recipient, unless the trace
+	 * is null.
+	 */
+	public void sendMessage(User user, String message, MessageTrace trace) throws Throwable {
+
+		ChatMetrics metrics = chatManager.getMetrics();
+		metrics.getMessagesReceived().increment();
+		if (!owned) {
+			// The owner numbers it and sends it back along with everyone else's
+			chatManager.forward(BusFrame.forward(this, user, message));
+			return;
+		}
+		ChatEvent event = broadcastMessage(user, message, trace, -1);
+		if (trace != null) {
+			metrics.getTraceStage(MessageTrace.Stage.FAN_OUT).record(System.nanoTime() - trace.getReceivedAt());
+		}
+		chatManager.relay(BusFrame.message(this, user, message, event.getSequence()));
+	}
+
+	// Numbers the message unless it was numbered by the owner already
+	private ChatEvent broadcastMessage(User user, String message, MessageTrace trace, long numbered) {
+
+		lastActivity = System.nanoTime();
+		ChatEvent event;
+		ChatEvent recorded = null;
+		UserCallbackHandler[] recipients;
+		if (history == null && recentMessages == null) {
+			event = ChatEvent.newMessage(this, user, message, trace, takeSequence(numbered));
+			recipients = this.recipients;
+		} else if (history == null) {
+			// A joining user gets the message either replayed or live, never both
+			Lock lock = replayLock.readLock();
+			lock.lock();
+			try {
+				event = ChatEvent.newMessage(this, user, message, trace, takeSequence(numbered));
+				recorded = event.recorded();
+				recentMessages.add(recorded);
+				recipients = this.recipients;
+			} finally {
+				lock.unlock();
+			}
+		} else {
+			// The history numbers messages in the order they are appended, so
+			// they are appended one at a time
+			synchronized (this) {
+				long sequence = takeSequence(numbered);
+				// Once closed, the history may be opened again by a new chat
+				if (!closed) {
+					history.append(user, message);
+				}
+				event = ChatEvent.newMessage(this, user, message, trace, sequence);
+				if (recentMessages != null) {
+					recorded = event.recorded();
+					recentMessages.add(recorded);
+				}
+				recipients = this.recipients;
+			}
+		}
+		if (recorded != null) {
+			// Encoded once, for the recipients and for every later backfill
+			recorded.shareTextMessage(event.toTextMessage());
+		}
+		for (UserCallbackHandler handler : recipients) {
+			handler.deliver(event);
+		}
+		return event;
+	}
+
+	private long takeSequence(long numbered) {
+		if (numbered < 0) {
+			return nextSequence.getAndIncrement();
+		}
+		nextSequence.accumulateAndGet(numbered + 1, Math::max);
+		return numbered;
+	}
+
+	/**
+	 * Hands a frame relayed from another node to the members on this one.
+	 * Messages keep the number the owner gave them and are kept and
+	 * backfilled like local ones; nothing is relayed back.
+	 */
+	void receiveRelayed(BusFrame frame) {
+		lastActivity = System.nanoTime();
+		User user = new RecordedUser(frame.getUserName(), frame.getUserColor());
+		ChatEvent event;
+		switch (frame.getType()) {
+		case MESSAGE:
+			broadcastMessage(user, frame.getMessage(), null, frame.getSequence());
+			return;
+		case USER_JOINED:
+			if (!remoteMemberJoined(frame.getNodeId(), user.getName())) {
+				// Told again after the nodes changed
+				return;
+			}
+			event = ChatEvent.newUserInChat(this, user);
+			break;
+		case USER_LEFT:
+			if (remoteMemberLeft(frame.getNodeId(), user.getName())) {
+				chatManager.chatEmptied(this);
+			}
+			event = ChatEvent.userExitedFromChat(this, user);
+			break;
+		default:
+			return;
+		}
+		for (UserCallbackHandler handler : this.recipients) {
+			handler.deliver(event);
+		}
+	}
+
+	private synchronized boolean remoteMemberJoined(String nodeId, String userName) {
+		return remoteMembers.computeIfAbsent(nodeId, n -> new HashSet<>()).add(userName);
+	}
 
-		for (UserCallbackHandler handler : this.users.values()) {
-			handler.newMessage(this, user, message);
+	// Returns whether the chat was left with no members on any node
+	private synchronized boolean remoteMemberLeft(String nodeId, String userName) {
+		Set<String> members = remoteMembers.get(nodeId);
+		if (members == null || !members.remove(userName)) {
+			return false;
 		}
+		if (members.isEmpty()) {
+			remoteMembers.remove(nodeId);
+		}
+		return remoteMembers.isEmpty() && recipients.length == 0;
+	}
+
+	/**
+	 * Forgets the members on nodes that left the cluster. Returns whether the
+	 * chat was left with no members on any node.
+	 */
+	synchronized boolean retainRemoteMembers(Set<String> nodeIds) {
+		boolean forgotten = false;
+		for (Iterator<String> it = remoteMembers.keySet().iterator(); it.hasNext();) {
+			if (!nodeIds.contains(it.next())) {
+				it.remove();
+				forgotten = true;
+			}
+		}
+		return forgotten && remoteMembers.isEmpty() && recipients.length == 0;
+	}
+
+	/**
+	 * Numbers a message sent to the chat on another node and relays it to
+	 * every node holding the chat, that one included. If this node no longer
+	 * owns the chat, it passes the message on to the one that does.
+	 */
+	void receiveForwarded(BusFrame frame) {
+		if (!owned) {
+			chatManager.forward(frame);
+			return;
+		}
+		User user = new RecordedUser(frame.getUserName(), frame.getUserColor());
+		ChatEvent event = broadcastMessage(user, frame.getMessage(), null, -1);
+		chatManager.relay(BusFrame.message(this, user, frame.getMessage(), event.getSequence()));
+	}
+
+	/**
+	 * Whether this node numbers the messages of the chat. Always true out of
+	 * a cluster.
+	 */
+	public boolean isOwned() {
+		return owned;
+	}
+
+	/**
+	 * Makes this node the owner of the chat, numbering from nextSequence on
+	 * unless it is further already. Returns false if it already was, or the
+	 * chat is closed.
+	 */
+	synchronized boolean takeOwnership(long nextSequence) {
+		this.nextSequence.accumulateAndGet(nextSequence, Math::max);
+		if (closed || owned) {
+			return false;
+		}
+		owned = true;
+		return true;
+	}
+
+	/**
+	 * Stops numbering the messages of the chat on this node. Returns the
+	 * number of the next message, for the new owner to carry on from, or -1
+	 * if this node was not the owner or the chat is closed.
+	 */
+	synchronized long releaseOwnership() {
+		if (closed || !owned) {
+			return -1;
+		}
+		owned = false;
+		return nextSequence.get();
 	}
 
 	public void close() {
 		this.chatManager.closeChat(this);
 	}
+
+	/**
+	 * Returns whether this node owns the chat, which no longer changes once it
+	 * is closed.
+	 */
+	synchronized boolean markClosed() {
+		closed = true;
+		return owned;
+	}
+
+	/**
+	 * Lets the message log close the history of the chat, once it is closed.
+	 */
+	void releaseHistory() {
+		if (history != null) {
+			history.release();
+		}
+	}
+
+	/**
+	 * Returns the recent message slots reserved for this chat, once, so that
+	 * the chat manager can hand them to other chats.
+	 */
+	synchronized int releaseRecentMessages() {
+		int released = reservedRecentMessages;
+		reservedRecentMessages = 0;
+		return released;
+	}
+
+	/**
+	 * Closes the chat if it has had no members and no activity for the given
+	 * time. Returns 0 if it did, the nanoseconds left until it can if it is
+	 * empty but was active recently, and -1 if it has members or was already
+	 * closed. The owner also counts the members on other nodes, which rely on
+	 * it to number their messages.
+	 */
+	synchronized long closeIfEmptyFor(long timeToLiveNanos) {
+		if (closed || recipients.length != 0 || (owned && !remoteMembers.isEmpty())) {
+			return -1;
+		}
+		long remaining = timeToLiveNanos - (System.nanoTime() - lastActivity);
+		if (remaining > 0) {
+			return remaining;
+		}
+		closed = true;
+		return 0;
+	}
+
+	boolean startReapCountdown() {
+		return reapScheduled.compareAndSet(false, true);
+	}
+
+	void reapCountdownFinished() {
+		reapScheduled.set(false);
+	}
 }
@@ -0,0 +1,47 @@
+package es.codeurjc.webchat;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Connects the {@link ChatManager}s of several nodes, so that a chat can have
+ * members on more than one of them. Nodes subscribe to the chats they hold,
+ * and a frame published to a chat reaches every other node subscribed to it,
+ * once per node no matter how many members the chat has there. Frames can
+ * also be sent to a single node, and every node is told which nodes are
+ * connected whenever that changes.
+ */
+public interface ChatBus {
+
+	public interface Listener {
+
+		/**
+		 * Frames published by other nodes to chats this node is subscribed to,
+		 * in the order each node published them.
+		 */
+		public void received(List<BusFrame> frames);
+
+		/**
+		 * The nodes connected now, this one included. Called once on connecting
+		 * and then whenever a node connects or disconnects.
+		 */
+		public default void nodesChanged(Set<String> nodeIds) {
+		}
+	}
+
+	public void connect(String nodeId, Listener listener);
+
+	public void disconnect(String nodeId);
+
+	public void subscribe(String nodeId, String chatName);
+
+	public void unsubscribe(String nodeId, String chatName);
+
+	public void publish(String nodeId, BusFrame frame);
+
+	/**
+	 * Sends the frame to one node, whether or not it is subscribed to the
+	 * chat. Frames sent to a node that is not connected are dropped.
+	 */
+	public void send(String nodeId, String toNodeId, BusFrame frame);
+}
@@ -0,0 +1,103 @@
+package es.codeurjc.webchat;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts how many more chats can be created. Callers that find no capacity
+ * get a future instead of a parked thread; waiters are served in arrival
+ * order and newcomers never overtake them. Timeouts run on the shared timer
+ * of the {@link DeliveryScheduler}.
+ */
+class ChatCapacity {
+
+	private final AtomicInteger available;
+
+	private final Queue<CompletableFuture<Void>> waiters = new ConcurrentLinkedQueue<>();
+
+	private final DeliveryScheduler scheduler;
+
+	ChatCapacity(int capacity, DeliveryScheduler scheduler) {
+		this.available = new AtomicInteger(capacity);
+		this.scheduler = scheduler;
+	}
+
+	int available() {
+		return available.get();
+	}
+
+	int waiting() {
+		return waiters.size();
+	}
+
+	CompletableFuture<Void> acquire(long timeout, TimeUnit unit) {
+		if (waiters.isEmpty() && tryAcquire()) {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		CompletableFuture<Void> waiter = new CompletableFuture<>();
+		waiters.add(waiter);
+
+		ScheduledFuture<?> timeoutTask = scheduler.schedule(() -> waiter.completeExceptionally(
+				new TimeoutException("Timed out waiting for capacity to create new chat")), timeout, unit);
+
+		waiter.whenComplete((granted, error) -> {
+			timeoutTask.cancel(false);
+			if (error != null) {
+				waiters.remove(waiter);
+			}
+		});
+
+		// Capacity may have been released before the waiter was queued
+		grantWaiters();
+		return waiter;
+	}
+
+	/**
+	 * Takes capacity even if there is none left, for a chat that already
+	 * exists elsewhere and is handed over. Until enough is released, nobody
+	 * else gets any.
+	 */
+	void acquireNow() {
+		available.decrementAndGet();
+	}
+
+	void release() {
+		available.incrementAndGet();
+		grantWaiters();
+	}
+
+	boolean tryAcquire() {
+		int current;
+		do {
+			current = available.get();
+			if (current <= 0) {
+				return false;
+			}
+		} while (!available.compareAndSet(current, current - 1));
+		return true;
+	}
+
+	private void grantWaiters() {
+		CompletableFuture<Void> waiter;
+		while ((waiter = waiters.peek()) != null) {
+			if (waiter.isDone()) {
+				waiters.remove(waiter);
+				continue;
+			}
+			if (!tryAcquire()) {
+				return;
+			}
+			// Another thread may be granting the same waiter, or it may have been
+			// cancelled or timed out meanwhile: then the permit goes back.
+			if (!waiters.remove(waiter) || !waiter.complete(null)) {
+				available.incrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package es.codeurjc.webchat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.web.socket.TextMessage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Something that happened in a chat and has to reach a set of users. One
+ * instance is shared by every recipient of a broadcast, so the wire frame is
+ * encoded at most once per wire format no matter how many sessions it is
+ * written to.
+ */
+public final class ChatEvent {
+
+	public enum Type {
+		NEW_CHAT, CHAT_CLOSED, NEW_USER_IN_CHAT, USER_EXITED_FROM_CHAT, NEW_MESSAGE
+	}
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final Type type;
+	private final Chat chat;
+	private final User user;
+	private final String message;
+	private final long createdAt = System.nanoTime();
+	private final MessageTrace trace;
+	private final long sequence;
+
+	/**
+	 * An event encoded as a {@link BinaryProtocol} frame, with the ids it
+	 * refers to, whose definitions must have reached a connection before it.
+	 */
+	static final class BinaryFrame {
+
+		private final ByteBuffer frame;
+		private final List<WireIds.Entry> references;
+
+		private BinaryFrame(ByteBuffer frame, List<WireIds.Entry> references) {
+			this.frame = frame;
+			this.references = references;
+		}
+
+		/**
+		 * Shared, so it has to be duplicated before it is written.
+		 */
+		ByteBuffer getFrame() {
+			return frame;
+		}
+
+		List<WireIds.Entry> getReferences() {
+			return references;
+		}
+	}
+
+	private volatile TextMessage textMessage;
+
+	private volatile BinaryFrame binaryFrame;
+
+	private volatile ByteBuffer deflatedFrame;
+
+	private ChatEvent(Type type, Chat chat, User user, String message) {
+		this(type, chat, user, message, null, -1);
+	}
+
+	private ChatEvent(Type type, Chat chat, User user, String message, MessageTrace trace, long sequence) {
+		this.type = type;
+		this.chat = chat;
+		this.user = user;
+		this.message = message;
+		this.trace = trace;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * A copy of a message whose author is a {@link RecordedUser} with the same
+	 * name and color, to be kept once broadcast without keeping the author,
+	 * and through it its connection, after it leaves.
+	 */
+	ChatEvent recorded() {
+		User author = user instanceof RecordedUser ? user : new RecordedUser(user.getName(), user.getColor());
+		ChatEvent copy = new ChatEvent(type, chat, author, message, null, sequence);
+		copy.textMessage = textMessage;
+		return copy;
+	}
+
+	/**
+	 * Takes the frame encoded for the event this one was recorded from, which
+	 * is the same, unless it encoded its own already.
+	 */
+	void shareTextMessage(TextMessage encoded) {
+		if (textMessage == null) {
+			textMessage = encoded;
+		}
+	}
+
+	public static ChatEvent newChat(Chat chat) {
+		return new ChatEvent(Type.NEW_CHAT, chat, null, null);
+	}
+
+	public static ChatEvent chatClosed(Chat chat) {
+		return new ChatEvent(Type.CHAT_CLOSED, chat, null, null);
+	}
+
+	public static ChatEvent newUserInChat(Chat chat, User user) {
+		return new ChatEvent(Type.NEW_USER_IN_CHAT, chat, user, null);
+	}
+
+	public static ChatEvent userExitedFromChat(Chat chat, User user) {
+		return new ChatEvent(Type.USER_EXITED_FROM_CHAT, chat, user, null);
+	}
+
+	public static ChatEvent newMessage(Chat chat, User user, String message) {
+		return new ChatEvent(Type.NEW_MESSAGE, chat, user, message);
+	}
+
+	public static ChatEvent newMessage(Chat chat, User user, String message, MessageTrace trace) {
+		return new ChatEvent(Type.NEW_MESSAGE, chat, user, message, trace, -1);
+	}
+
+	static ChatEvent newMessage(Chat chat, User user, String message, MessageTrace trace, long sequence) {
+		return new ChatEvent(Type.NEW_MESSAGE, chat, user, message, trace, sequence);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public Chat getChat() {
+		return chat;
+	}
+
+	public User getUser() {
+		return user;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * System.nanoTime() when the event was created.
+	 */
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	/**
+	 * The trace of a sampled message, null for everything else.
+	 */
+	public MessageTrace getTrace() {
+		return trace;
+	}
+
+	/**
+	 * Position of a message among those sent to its chat, increasing by one
+	 * with every message. -1 for anything else.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	public boolean isSystemNotice() {
+		return type != Type.NEW_MESSAGE;
+	}
+
+	// Users are not told about their own joins and exits
+	boolean isMembershipChangeOf(User recipient) {
+		return (type == Type.NEW_USER_IN_CHAT || type == Type.USER_EXITED_FROM_CHAT) && user == recipient;
+	}
+
+	public void dispatchTo(User recipient) {
+		switch (type) {
+		case NEW_CHAT:
+			recipient.newChat(chat);
+			break;
+		case CHAT_CLOSED:
+			recipient.chatClosed(chat);
+			break;
+		case NEW_USER_IN_CHAT:
+			recipient.newUserInChat(chat, user);
+			break;
+		case USER_EXITED_FROM_CHAT:
+			recipient.userExitedFromChat(chat, user);
+			break;
+		case NEW_MESSAGE:
+			recipient.newMessage(chat, user, message);
+			break;
+		}
+	}
+
+	public TextMessage toTextMessage() {
+		TextMessage encoded = textMessage;
+		if (encoded == null) {
+			synchronized (this) {
+				encoded = textMessage;
+				if (encoded == null) {
+					encoded = new TextMessage(encodeJson().toString());
+					textMessage = encoded;
+				}
+			}
+		}
+		return encoded;
+	}
+
+	BinaryFrame toBinaryFrame() {
+		BinaryFrame encoded = binaryFrame;
+		if (encoded == null) {
+			synchronized (this) {
+				encoded = binaryFrame;
+				if (encoded == null) {
+					encoded = encodeBinary(type == Type.NEW_CHAT || type == Type.CHAT_CLOSED
+							? chat.getLobbyWireIds() : chat.getWireIds());
+					binaryFrame = encoded;
+				}
+			}
+		}
+		return encoded;
+	}
+
+	/**
+	 * The JSON frame compressed as {@link DeflateProtocol} says. Shared, so it
+	 * has to be duplicated before it is written.
+	 */
+	ByteBuffer toDeflatedFrame() {
+		ByteBuffer encoded = deflatedFrame;
+		if (encoded == null) {
+			String json = toTextMessage().getPayload();
+			synchronized (this) {
+				encoded = deflatedFrame;
+				if (encoded == null) {
+					encoded = ByteBuffer.wrap(DeflateProtocol.deflate(json)).asReadOnlyBuffer();
+					deflatedFrame = encoded;
+				}
+			}
+		}
+		return encoded;
+	}
+
+	private BinaryFrame encodeBinary(WireIds ids) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(message == null ? 16 : message.length() + 16);
+		List<WireIds.Entry> references = new ArrayList<>(2);
+		// No other frame takes an id between the references of this one
+		synchronized (ids) {
+			switch (type) {
+			case NEW_CHAT:
+				out.write(BinaryProtocol.NEW_CHAT);
+				writeReference(out, ids, chat.getName(), references);
+				break;
+			case CHAT_CLOSED:
+				out.write(BinaryProtocol.CHAT_CLOSED);
+				writeReference(out, ids, chat.getName(), references);
+				break;
+			case NEW_USER_IN_CHAT:
+				out.write(BinaryProtocol.USER_JOINED);
+				writeReference(out, ids, chat.getName(), references);
+				writeReference(out, ids, user.getName(), references);
+				break;
+			case USER_EXITED_FROM_CHAT:
+				out.write(BinaryProtocol.USER_EXITED);
+				writeReference(out, ids, chat.getName(), references);
+				writeReference(out, ids, user.getName(), references);
+				break;
+			case NEW_MESSAGE:
+				out.write(BinaryProtocol.MESSAGE);
+				writeReference(out, ids, user.getName(), references);
+				writeReference(out, ids, user.getColor(), references);
+				BinaryProtocol.writeVarint(out, sequence + 1);
+				BinaryProtocol.writeString(out, message);
+				break;
+			}
+		}
+		return new BinaryFrame(ByteBuffer.wrap(out.toByteArray()).asReadOnlyBuffer(), references);
+	}
+
+	private static void writeReference(ByteArrayOutputStream out, WireIds ids, String value,
+			List<WireIds.Entry> references) {
+		WireIds.Entry entry = ids.entryOf(value);
+		BinaryProtocol.writeVarint(out, entry.getId());
+		references.add(entry);
+	}
+
+	private ObjectNode encodeJson() {
+		ObjectNode msg = mapper.createObjectNode();
+		switch (type) {
+		case NEW_CHAT:
+			msg.put("type", "system");
+			msg.put("message", "New chat '" + chat.getName() + "'");
+			break;
+		case CHAT_CLOSED:
+			msg.put("type", "system");
+			msg.put("message", "Chat '" + chat.getName() + "' closed");
+			break;
+		case NEW_USER_IN_CHAT:
+			msg.put("type", "system");
+			msg.put("message", "New user '" + user.getName() + "' in chat '" + chat.getName() + "'");
+			break;
+		case USER_EXITED_FROM_CHAT:
+			msg.put("type", "system");
+			msg.put("message", "User '" + user.getName() + "' exited from chat '" + chat.getName() + "'");
+			break;
+		case NEW_MESSAGE:
+			msg.put("name", user.getName());
+			msg.put("color", user.getColor());
+			msg.put("message", message);
+			if (sequence >= 0) {
+				msg.put("seq", sequence);
+			}
+			break;
+		}
+		return msg;
+	}
+}
@@ -0,0 +1,21 @@
+package es.codeurjc.webchat;
+
+import java.util.List;
+
+/**
+ * Implemented by users that can consume {@link ChatEvent}s as a whole, for
+ * instance to write their pre-encoded frames, instead of through the
+ * individual {@link User} callbacks, and that own a connection which can be
+ * dropped when they do not keep up with their events.
+ */
+public interface ChatEventReceiver {
+
+	/**
+	 * Writes a batch of events, possibly asynchronously. The callback must be
+	 * invoked exactly once, and no other batch is handed over until then.
+	 */
+	public void receive(List<ChatEvent> events, DeliveryCallback callback);
+
+	public void disconnect();
+
+}
@@ -1,26 +1,87 @@
 package es.codeurjc.webchat;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.SubProtocolCapable;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+/**
+ * Speaks JSON text frames, or {@link BinaryProtocol} or {@link DeflateProtocol}
+ * frames with clients that ask for their subprotocol in the handshake.
+ */
+public class ChatHandler extends AbstractWebSocketHandler implements SubProtocolCapable {
 
-public class ChatHandler extends TextWebSocketHandler {
+	private static final Logger log = LoggerFactory.getLogger(ChatHandler.class);
 
-	private ObjectMapper mapper = new ObjectMapper();
+	private static final Logger payloadLog = LoggerFactory.getLogger("es.codeurjc.webchat.payloads");
 
-	private ChatManager chatManager = new ChatManager(10);
+	public static final int DEFAULT_MAX_CHATS = 10;
+
+	public static final long CHAT_CREATION_TIMEOUT_SECONDS = 5;
+
+	private ChatManager chatManager;
 
 	private String[] colors = { "007AFF", "FF7000", "15E25F", "CFC700", "CFC700", "CF1100", "CF00BE", "F00" };
 
 	private volatile int colorIndex = 0;
 
+	private PayloadSampler payloadSampler;
+
+	private ClientCommandDecoder decoder;
+
+	private BinaryCommandDecoder binaryDecoder;
+
+	private volatile int deflateMinLength = DeflateProtocol.DEFAULT_MIN_LENGTH;
+
+	public ChatHandler() {
+		this(new ChatManager(DEFAULT_MAX_CHATS), new PayloadSampler(0), new ClientCommandDecoder());
+	}
+
+	public ChatHandler(ChatManager chatManager, PayloadSampler payloadSampler, ClientCommandDecoder decoder) {
+		this(chatManager, payloadSampler, decoder, new BinaryCommandDecoder(decoder.getMaxFrameLength()));
+	}
+
+	public ChatHandler(ChatManager chatManager, PayloadSampler payloadSampler, ClientCommandDecoder decoder,
+			BinaryCommandDecoder binaryDecoder) {
+		this.chatManager = chatManager;
+		this.payloadSampler = payloadSampler;
+		this.decoder = decoder;
+		this.binaryDecoder = binaryDecoder;
+	}
+
+	@Override
+	public List<String> getSubProtocols() {
+		return Arrays.asList(BinaryProtocol.SUBPROTOCOL, DeflateProtocol.SUBPROTOCOL);
+	}
+
+	/**
+	 * Sets the length from which JSON frames are compressed for the sessions
+	 * speaking the {@link DeflateProtocol}.
+	 */
+	public void setDeflateMinLength(int minLength) {
+		if (minLength < 0) {
+			throw new IllegalArgumentException("Minimum length cannot be negative: " + minLength);
+		}
+		this.deflateMinLength = minLength;
+	}
+
+	public PayloadSampler getPayloadSampler() {
+		return payloadSampler;
+	}
+
 	@Override
 	public void afterConnectionEstablished(WebSocketSession session) throws Exception {
 
@@ -28,52 +89,212 @@ public class ChatHandler extends TextWebSocketHandler {
 
 	@Override
 	protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-		System.out.println("Message received: " + message.getPayload());
-
+		long receivedAt = System.nanoTime();
 		String msg = message.getPayload();
 
-		JsonNode jsonMsg = mapper.readTree(msg);
-		if (jsonMsg.hasNonNull("chat")) {
-			newUser(session, jsonMsg);
-		} else {
+		if (payloadSampler.sample()) {
+			payloadLog.debug("Message received session={} payload={}", session.getId(), msg);
+		}
+
+		ClientCommand command;
+		long decodingStartedAt = System.nanoTime();
+		try {
+			command = decoder.decode(msg);
+		} catch (InvalidCommandException e) {
+			rejectFrame(session, e);
+			return;
+		}
+		chatManager.getMetrics().getParseTime().recordSince(decodingStartedAt);
+		handleCommand(session, command, receivedAt);
+	}
+
+	@Override
+	protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+		long receivedAt = System.nanoTime();
+
+		if (payloadSampler.sample()) {
+			payloadLog.debug("Message received session={} binaryBytes={}", session.getId(),
+					message.getPayloadLength());
+		}
+
+		ClientCommand command;
+		long decodingStartedAt = System.nanoTime();
+		try {
+			command = binaryDecoder.decode(message.getPayload());
+		} catch (InvalidCommandException e) {
+			rejectFrame(session, e);
+			return;
+		}
+		chatManager.getMetrics().getParseTime().recordSince(decodingStartedAt);
+		handleCommand(session, command, receivedAt);
+	}
+
+	private void rejectFrame(WebSocketSession session, InvalidCommandException e) throws IOException {
+		log.debug("Rejected frame, closing session session={} reason={}", session.getId(), e.getMessage());
+		session.close(CloseStatus.BAD_DATA.withReason(e.getMessage()));
+	}
+
+	private void handleCommand(WebSocketSession session, ClientCommand command, long receivedAt) {
+		ChatMetrics metrics = chatManager.getMetrics();
+		switch (command.getType()) {
+		case JOIN:
+			newUser(session, (ClientCommand.Join) command);
+			break;
+		case MESSAGE:
+			MessageTrace trace = null;
+			if (metrics.getTraceSampler().sample()) {
+				trace = new MessageTrace(receivedAt);
+				metrics.getTraceStage(MessageTrace.Stage.DECODE).record(System.nanoTime() - receivedAt);
+			}
 			try {
-				newMessage(session, jsonMsg);
+				newMessage(session, (ClientCommand.Message) command, trace);
 			} catch (Throwable e) {
-				e.printStackTrace();
+				log.warn("Failed to send message session={}", session.getId(), e);
 			}
+			break;
 		}
 	}
 
-	private void newMessage(WebSocketSession session, JsonNode jsonMsg) throws Throwable {
+	private void newMessage(WebSocketSession session, ClientCommand.Message command, MessageTrace trace)
+			throws Throwable {
 		User user = (User) session.getAttributes().get("user");
 		Chat chat = (Chat) session.getAttributes().get("chat");
 
-		chat.sendMessage(user, jsonMsg.get("message").asText());
+		if (chat == null) {
+			log.debug("Ignoring message from a session that has not joined a chat session={}", session.getId());
+			return;
+		}
+
+		chat.sendMessage(user, command.getMessage(), trace);
 	}
 
-	private void newUser(WebSocketSession session, JsonNode jsonMsg) throws InterruptedException, TimeoutException {
+	// Runs on a container thread, so it never waits for chat capacity: the
+	// user joins the chat whenever the creation completes
+	private void newUser(WebSocketSession session, ClientCommand.Join command) {
 
-		String chatName = jsonMsg.get("chat").asText();
-		String userName = jsonMsg.get("user").asText();
+		String chatName = command.getChat();
+		String userName = command.getUser();
 
-		WebSocketUser user = new WebSocketUser(session, userName, colors[colorIndex]);
+		// The user of a session is only released when the session closes, so
+		// it cannot be replaced by another one
+		if (session.getAttributes().get("user") != null) {
+			log.debug("Repeated join, closing session user={} session={}", userName, session.getId());
+			rejectSession(session, "Already joined");
+			return;
+		}
+
+		WebSocketUser user = new WebSocketUser(session, userName, colors[colorIndex],
+				WebSocketUser.DEFAULT_SEND_TIMEOUT_MILLIS, chatManager.getMetrics());
+		user.setDeflateMinLength(deflateMinLength);
 		colorIndex = (colorIndex + 1) % colors.length;
 
-		session.getAttributes().put("user", user);
+		// A user reconnecting within the grace period takes its place back, as
+		// long as it proves it is the client that had it
+		User detached = chatManager.getUser(userName);
+		Map<String, Long> lastSequences = command.getLastSequence() == null ? Collections.emptyMap()
+				: Collections.singletonMap(chatName, command.getLastSequence());
+		if (detached instanceof WebSocketUser && ((WebSocketUser) detached).isResumableWith(command.getResumeToken())
+				&& chatManager.resumeUser(detached, user, command.isLobby(), lastSequences)) {
+			session.getAttributes().put("user", user);
+			user.sendResumeToken();
+			Chat chat = chatManager.getChat(chatName);
+			if (chat != null && chat.getUser(userName) == user) {
+				session.getAttributes().put("chat", chat);
+				log.debug("User resumed user={} chat={} session={}", userName, chatName, session.getId());
+				return;
+			}
+		} else {
+			try {
+				chatManager.newUser(user, command.isLobby());
+			} catch (IllegalArgumentException e) {
+				rejectUser(session, userName);
+				return;
+			}
+			session.getAttributes().put("user", user);
+			user.sendResumeToken();
+		}
+
+		requestChat(session, user, chatName);
+	}
+
+	private void rejectUser(WebSocketSession session, String userName) {
+		log.debug("User name taken, closing session user={} session={}", userName, session.getId());
+		rejectSession(session, "User name already taken");
+	}
+
+	private void rejectSession(WebSocketSession session, String reason) {
+		try {
+			session.close(CloseStatus.POLICY_VIOLATION.withReason(reason));
+		} catch (IOException e) {
+			log.debug("Failed to close session session={}", session.getId(), e);
+		}
+	}
+
+	private void requestChat(WebSocketSession session, User user, String chatName) {
+		CompletableFuture<Chat> pendingChat = chatManager.newChatAsync(chatName, CHAT_CREATION_TIMEOUT_SECONDS,
+				TimeUnit.SECONDS);
+		session.getAttributes().put("pendingChat", pendingChat);
 
-		chatManager.newUser(user);
-		Chat chat = chatManager.newChat(chatName, 5, TimeUnit.SECONDS);
+		pendingChat.whenComplete((chat, error) -> {
+			session.getAttributes().remove("pendingChat");
+			if (error != null) {
+				chatNotCreated(session, chatName, error);
+			} else {
+				joinChat(session, user, chat);
+			}
+		});
+	}
+
+	private void joinChat(WebSocketSession session, User user, Chat chat) {
 		session.getAttributes().put("chat", chat);
+		try {
+			chat.addUser(user);
+		} catch (IllegalArgumentException e) {
+			// The connection was closed and the user removed while the chat was being created
+			return;
+		} catch (IllegalStateException e) {
+			// The chat was closed, for instance reaped while empty, before the user got in
+			session.getAttributes().remove("chat");
+			requestChat(session, user, chat.getName());
+			return;
+		}
+
+		if (!session.isOpen()) {
+			chat.removeUser(user);
+			chatManager.removeUser(user);
+			return;
+		}
 
-		chat.addUser(user);
+		log.debug("User joined user={} chat={} session={}", user.getName(), chat.getName(), session.getId());
+	}
+
+	private void chatNotCreated(WebSocketSession session, String chatName, Throwable error) {
+		if (error instanceof CancellationException) {
+			return;
+		}
+		log.info("Could not create chat, closing session chat={} session={} reason={}", chatName, session.getId(),
+				error.getMessage());
+		try {
+			session.close(CloseStatus.SERVICE_OVERLOAD.withReason("No capacity for new chats"));
+		} catch (IOException e) {
+			log.debug("Failed to close session session={}", session.getId(), e);
+		}
 	}
 
 	@Override
 	public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
 
+		CompletableFuture<?> pendingChat = (CompletableFuture<?>) session.getAttributes().get("pendingChat");
+		if (pendingChat != null) {
+			pendingChat.cancel(false);
+		}
+
+		// Its chats keep it for the grace period, in case it reconnects
 		User user = (User) session.getAttributes().get("user");
-		Chat chat = (Chat) session.getAttributes().get("chat");
+		if (user != null) {
+			chatManager.detachUser(user);
+		}
 
-		chat.removeUser(user);
+		log.debug("Connection closed session={} status={}", session.getId(), status);
 	}
 }
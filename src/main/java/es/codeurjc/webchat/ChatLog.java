@@ -0,0 +1,250 @@
+package es.codeurjc.webchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The messages of one chat in the {@link MessageLog}. Appending only assigns
+ * the next offset and queues the message; the log writer thread writes every
+ * queued message to the segments later, together with those of other chats.
+ * Messages stay queued until they are on disk, so reads see them either way.
+ */
+class ChatLog {
+
+	private static final Logger log = LoggerFactory.getLogger(ChatLog.class);
+
+	private final MessageLog messageLog;
+
+	private final String chatName;
+
+	private final File directory;
+
+	private final ConcurrentNavigableMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+
+	// In offset order, as they are added while holding the lock of this log
+	private final Queue<LoggedMessage> pending = new ConcurrentLinkedQueue<>();
+
+	private final AtomicBoolean queuedForWriting = new AtomicBoolean();
+
+	private long nextOffset;
+
+	// Messages below it are in the segments. Only the writer moves it forward.
+	private volatile long committedOffset;
+
+	// Only used by the writer thread
+	private long writtenOffset;
+
+	// Holders of this log. Only changed while computing its entry in the
+	// message log.
+	private volatile int references;
+
+	ChatLog(MessageLog messageLog, String chatName, File directory) throws IOException {
+		this.messageLog = messageLog;
+		this.chatName = chatName;
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+		if (files != null) {
+			for (File file : files) {
+				long baseOffset = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+				segments.put(baseOffset, LogSegment.open(directory, baseOffset, messageLog.getSegmentBytes()));
+			}
+		}
+		if (!segments.isEmpty()) {
+			nextOffset = segments.lastEntry().getValue().getNextOffset();
+		}
+		committedOffset = nextOffset;
+		writtenOffset = nextOffset;
+	}
+
+	String getChatName() {
+		return chatName;
+	}
+
+	void addReference() {
+		references++;
+	}
+
+	void removeReference() {
+		references--;
+	}
+
+	/**
+	 * Lets the message log close this log once whatever was appended to it is
+	 * on disk, unless someone else holds it.
+	 */
+	void release() {
+		messageLog.releaseChatLog(this);
+	}
+
+	/**
+	 * Whether nobody holds this log and everything appended to it is on disk.
+	 */
+	boolean isUnused() {
+		return references == 0 && pending.isEmpty();
+	}
+
+	synchronized long append(User user, String message) {
+		long offset = nextOffset++;
+		pending.add(new LoggedMessage(offset, System.currentTimeMillis(), user.getName(), user.getColor(), message));
+		if (queuedForWriting.compareAndSet(false, true)) {
+			messageLog.queueForWriting(this);
+		}
+		return offset;
+	}
+
+	synchronized long getNextOffset() {
+		return nextOffset;
+	}
+
+	/**
+	 * Returns up to the last count messages, oldest first. Messages dropped by
+	 * retention are not returned.
+	 */
+	List<LoggedMessage> readLast(int count) {
+		return readLast(count, 0);
+	}
+
+	/**
+	 * Returns up to the last count messages from offset from on, oldest first.
+	 */
+	List<LoggedMessage> readLast(int count, long from) {
+		if (count <= 0) {
+			return Collections.emptyList();
+		}
+		// Messages leave the queue only after the committed offset has moved
+		// past them, so reading it after the queue leaves no gap in between
+		List<LoggedMessage> queued = new ArrayList<>(pending);
+		long committed = committedOffset;
+
+		long end = queued.isEmpty() ? committed : Math.max(committed, queued.get(queued.size() - 1).getOffset() + 1);
+		long start = Math.max(from, end - count);
+		List<LoggedMessage> messages = new ArrayList<>((int) Math.max(0, end - start));
+		for (long offset = start; offset < Math.min(committed, end); offset++) {
+			Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+			LogSegment segment = entry == null ? null : entry.getValue();
+			// Retention may drop the segment meanwhile
+			if (segment != null && segment.retain()) {
+				try {
+					if (offset < segment.getNextOffset()) {
+						messages.add(segment.read(offset));
+					}
+				} finally {
+					segment.release();
+				}
+			}
+		}
+		for (LoggedMessage message : queued) {
+			if (message.getOffset() >= Math.max(start, committed)) {
+				messages.add(message);
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * Writes the queued messages to the segments without forcing them to disk.
+	 * Called by the writer thread, followed by commit.
+	 */
+	void write() {
+		queuedForWriting.set(false);
+		for (LoggedMessage message : pending) {
+			if (message.getOffset() < writtenOffset) {
+				continue;
+			}
+			try {
+				LogSegment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+				if (segment == null || !segment.append(message)) {
+					segment = LogSegment.open(directory, message.getOffset(), messageLog.getSegmentBytes());
+					segments.put(message.getOffset(), segment);
+					segment.append(fitted(message));
+				}
+			} catch (IOException e) {
+				log.error("Cannot write message log dir={} offset={}", directory, message.getOffset(), e);
+			}
+			writtenOffset = message.getOffset() + 1;
+		}
+	}
+
+	// A segment is numbered by the records in it, so every message has to be
+	// stored for the ones after it to keep their offsets
+	private LoggedMessage fitted(LoggedMessage message) {
+		int segmentBytes = messageLog.getSegmentBytes();
+		if (LogSegment.fits(message, segmentBytes)) {
+			return message;
+		}
+		log.warn("Message too long for a log segment, stored without its text dir={} offset={}", directory,
+				message.getOffset());
+		LoggedMessage withoutText = new LoggedMessage(message.getOffset(), message.getTimestamp(),
+				message.getUserName(), message.getUserColor(), "");
+		if (LogSegment.fits(withoutText, segmentBytes)) {
+			return withoutText;
+		}
+		return new LoggedMessage(message.getOffset(), message.getTimestamp(), "", "", "");
+	}
+
+	/**
+	 * Forces what write left in the segments to disk, once for however many
+	 * messages it wrote, and only then takes them out of the queue.
+	 */
+	void commit() {
+		if (writtenOffset == committedOffset) {
+			return;
+		}
+		if (messageLog.isForceOnCommit()) {
+			Long first = segments.floorKey(committedOffset);
+			for (LogSegment segment : (first == null ? segments : segments.tailMap(first)).values()) {
+				segment.force();
+			}
+		}
+		committedOffset = writtenOffset;
+		LoggedMessage head;
+		while ((head = pending.peek()) != null && head.getOffset() < writtenOffset) {
+			pending.poll();
+		}
+	}
+
+	/**
+	 * Unmaps the segments. Called by the writer thread once nobody holds this
+	 * log any more.
+	 */
+	void close() {
+		for (LogSegment segment : segments.values()) {
+			segment.close();
+		}
+	}
+
+	/**
+	 * Drops the oldest segments while the log is larger than maxBytes or their
+	 * newest message is older than oldestTimestamp. The last segment is kept.
+	 */
+	void enforceRetention(long maxBytes, long oldestTimestamp) {
+		long size = 0;
+		for (LogSegment segment : segments.values()) {
+			size += segment.getSizeBytes();
+		}
+		while (segments.size() > 1) {
+			LogSegment oldest = segments.firstEntry().getValue();
+			if (size <= maxBytes && oldest.getLastTimestamp() >= oldestTimestamp) {
+				break;
+			}
+			segments.remove(oldest.getBaseOffset());
+			size -= oldest.getSizeBytes();
+			oldest.delete();
+		}
+	}
+}
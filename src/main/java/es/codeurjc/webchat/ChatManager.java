@@ -1,70 +1,709 @@
 package es.codeurjc.webchat;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ChatManager {
 
 	private ConcurrentMap<String, Chat> chats = new ConcurrentHashMap<>();
 	private ConcurrentMap<String, UserCallbackHandler> users = new ConcurrentHashMap<>();
-	private BlockingQueue<Object> chatTokens;
+	private ChatCapacity chatCapacity;
+	private int maxChats;
+	private DeliveryScheduler deliveryScheduler;
+	private boolean ownsDeliveryScheduler;
+	private long emptyChatTimeToLiveNanos;
+	private LobbyFeed lobby;
+	private Collection<User> usersView = new UsersView(users.values(), users::size);
+	private ChatMetrics metrics = new ChatMetrics();
+	private volatile MessageLog messageLog;
+	private volatile int historyReplayCount;
+	private volatile int recentMessagesPerChat;
+	private AtomicLong recentMessagesAvailable = new AtomicLong();
+	private volatile long detachedUserGraceNanos;
+	private volatile int wireIdsPerChat = WireIds.DEFAULT_CAPACITY;
+	private WireIds lobbyWireIds = new WireIds(WireIds.DEFAULT_CAPACITY);
+	private volatile ChatBus bus;
+	private String nodeId;
+	private int virtualNodes;
+	private volatile HashRing ring;
+	private ConcurrentMap<String, CompletableFuture<Void>> admissions = new ConcurrentHashMap<>();
 
 	public ChatManager(int maxChats) {
-		Object[] tokens = new Object[maxChats];
-		Arrays.parallelSetAll(tokens, i -> new Object());
-		chatTokens = new ArrayBlockingQueue<>(maxChats, false, Arrays.asList(tokens));
+		this(maxChats, DeliveryScheduler.withDefaults(), true, 0);
+	}
+
+	public ChatManager(int maxChats, DeliveryScheduler deliveryScheduler) {
+		this(maxChats, deliveryScheduler, false, 0);
+	}
+
+	public ChatManager(int maxChats, long emptyChatTimeToLive, TimeUnit unit) {
+		this(maxChats, DeliveryScheduler.withDefaults(), true, unit.toNanos(emptyChatTimeToLive));
+	}
+
+	/**
+	 * Chats that stay empty, with no joins, exits or messages, for longer than
+	 * emptyChatTimeToLive are closed and their capacity is reclaimed. A time to
+	 * live of 0 keeps them forever.
+	 */
+	public ChatManager(int maxChats, DeliveryScheduler deliveryScheduler, long emptyChatTimeToLive, TimeUnit unit) {
+		this(maxChats, deliveryScheduler, false, unit.toNanos(emptyChatTimeToLive));
+	}
+
+	private ChatManager(int maxChats, DeliveryScheduler deliveryScheduler, boolean ownsDeliveryScheduler,
+			long emptyChatTimeToLiveNanos) {
+		this.deliveryScheduler = deliveryScheduler;
+		this.ownsDeliveryScheduler = ownsDeliveryScheduler;
+		this.emptyChatTimeToLiveNanos = emptyChatTimeToLiveNanos;
+		this.maxChats = maxChats;
+		this.chatCapacity = new ChatCapacity(maxChats, deliveryScheduler);
+		this.lobby = new LobbyFeed(deliveryScheduler);
+		registerGauges();
+	}
+
+	// Gauges are only computed when scraped, so nothing is kept up to date
+	// on the message path for them
+	private void registerGauges() {
+		metrics.registerGauge("webchat_chats_active", "Chats that currently exist", chats::size);
+		metrics.registerGauge("webchat_chats_max", "Chats that can exist at the same time", () -> maxChats);
+		metrics.registerGauge("webchat_chats_owned", "Chats whose messages this node numbers",
+				() -> chats.values().stream().filter(Chat::isOwned).count());
+		metrics.registerGauge("webchat_chat_capacity_waiters", "Chat creations waiting for capacity",
+				chatCapacity::waiting);
+		metrics.registerGauge("webchat_users_registered", "Registered users", users::size);
+		metrics.registerGauge("webchat_lobby_subscribers", "Users told about chats being created and closed",
+				lobby::getSubscriberCount);
+		metrics.registerGauge("webchat_chat_members_total", "Members of all chats",
+				() -> chats.values().stream().mapToLong(Chat::getUserCount).sum());
+		metrics.registerGauge("webchat_chat_members_max", "Members of the largest chat",
+				() -> chats.values().stream().mapToLong(Chat::getUserCount).max().orElse(0));
+		metrics.registerGauge("webchat_recent_messages_available", "Recent message slots left for new chats",
+				recentMessagesAvailable::get);
+		metrics.registerGauge("webchat_delivery_queue_depth_total", "Events queued for delivery to all users",
+				() -> users.values().stream().mapToLong(UserCallbackHandler::getQueueDepth).sum());
+		metrics.registerGauge("webchat_delivery_queue_depth_max", "Events queued for the most backlogged user",
+				() -> users.values().stream().mapToLong(UserCallbackHandler::getQueueDepth).max().orElse(0));
+		metrics.registerGauge("webchat_history_open_logs", "Chats whose message history is open",
+				() -> messageLog == null ? 0 : messageLog.getOpenChatLogs());
+	}
+
+	public ChatMetrics getMetrics() {
+		return metrics;
+	}
+
+	public int getMaxChats() {
+		return maxChats;
+	}
+
+	/**
+	 * Holds "New chat" and "Chat closed" notices for the given window and sends
+	 * them to the lobby together, dropping those about chats that did not
+	 * outlive it. A window of 0, the default, sends each notice right away.
+	 */
+	public void setLobbyNoticeWindow(long window, TimeUnit unit) {
+		lobby.setNoticeWindow(window, unit);
+	}
+
+	/**
+	 * Keeps the messages of every chat created from now on in the given log,
+	 * and replays the last replayCount of them to each user joining a chat.
+	 * The log is not closed with the chat manager.
+	 */
+	public void setMessageLog(MessageLog messageLog, int replayCount) {
+		if (replayCount < 0) {
+			throw new IllegalArgumentException("Replay count must not be negative");
+		}
+		this.messageLog = messageLog;
+		this.historyReplayCount = replayCount;
+	}
+
+	MessageLog getMessageLog() {
+		return messageLog;
+	}
+
+	int getHistoryReplayCount() {
+		return historyReplayCount;
+	}
+
+	/**
+	 * Keeps up to perChat of the latest messages of every chat created from
+	 * now on in memory, and sends them to each user joining it. Chats take
+	 * their slots out of a budget of total messages and hand them back when
+	 * closed; once the budget is used up, new chats get fewer slots or none.
+	 */
+	public void setRecentMessages(int perChat, long total) {
+		if (perChat < 0 || total < 0) {
+			throw new IllegalArgumentException("Recent message limits must not be negative");
+		}
+		this.recentMessagesPerChat = perChat;
+		this.recentMessagesAvailable.set(total);
+	}
+
+	/**
+	 * Gives every chat created from now on up to capacity ids for the names
+	 * and colors in binary frames. Past that, the least recently used ones
+	 * are given to new strings, at the cost of sending their definitions
+	 * again.
+	 */
+	public void setWireIdsPerChat(int capacity) {
+		if (capacity < WireIds.MIN_CAPACITY) {
+			throw new IllegalArgumentException("Wire ids per chat must be at least " + WireIds.MIN_CAPACITY);
+		}
+		this.wireIdsPerChat = capacity;
+	}
+
+	WireIds newChatWireIds() {
+		return new WireIds(wireIdsPerChat);
+	}
+
+	WireIds getLobbyWireIds() {
+		return lobbyWireIds;
+	}
+
+	int reserveRecentMessages() {
+		int perChat = recentMessagesPerChat;
+		while (true) {
+			long available = recentMessagesAvailable.get();
+			int reserved = (int) Math.min(perChat, available);
+			if (reserved == 0 || recentMessagesAvailable.compareAndSet(available, available - reserved)) {
+				return reserved;
+			}
+		}
+	}
+
+	public void setChatBus(ChatBus bus, String nodeId) {
+		setChatBus(bus, nodeId, HashRing.DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Joins this node to a cluster: what happens in a chat is relayed to the
+	 * other nodes holding a chat with the same name, and what happens there
+	 * reaches the members of the chat on this node. Nodes subscribe to a chat
+	 * while it exists on them.
+	 * <p>
+	 * Every chat is owned by one node, picked by consistent hashing of its
+	 * name with the given virtual nodes per node. The owner numbers all its
+	 * messages, so that they reach every node in the same order, and only its
+	 * chat limit is charged for the chat: other nodes ask it for capacity
+	 * before creating the chat. When nodes come or go, the chats that change
+	 * owner are handed over with the number of their next message. Names of
+	 * users are still only checked per node.
+	 */
+	public void setChatBus(ChatBus bus, String nodeId, int virtualNodes) {
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("Virtual nodes must be positive");
+		}
+		this.nodeId = nodeId;
+		this.virtualNodes = virtualNodes;
+		bus.connect(nodeId, new ChatBus.Listener() {
+			@Override
+			public void received(List<BusFrame> frames) {
+				relayed(frames);
+			}
+
+			@Override
+			public void nodesChanged(Set<String> nodeIds) {
+				rebalance(new HashRing(nodeIds, ChatManager.this.virtualNodes));
+			}
+		});
+		this.bus = bus;
+		for (String chatName : chats.keySet()) {
+			bus.subscribe(nodeId, chatName);
+		}
+	}
+
+	/**
+	 * Returns the id of the node owning the chat with the given name, or null
+	 * if this node is not in a cluster.
+	 */
+	public String getOwner(String chatName) {
+		HashRing ring = this.ring;
+		// Until the nodes are known, this one stands for all of them
+		return ring == null ? nodeId : ring.ownerOf(chatName);
+	}
+
+	/**
+	 * The ids of the nodes in the cluster as far as this node knows, none if
+	 * it is not in one.
+	 */
+	public Set<String> getClusterNodes() {
+		HashRing ring = this.ring;
+		return ring == null ? Collections.emptySet() : ring.getNodes();
+	}
+
+	String getNodeId() {
+		return nodeId;
+	}
+
+	private boolean ownsLocally(String chatName) {
+		String owner = getOwner(chatName);
+		return owner == null || owner.equals(nodeId);
+	}
+
+	void relay(BusFrame frame) {
+		ChatBus bus = this.bus;
+		if (bus != null) {
+			bus.publish(nodeId, frame);
+		}
+	}
+
+	void forward(BusFrame frame) {
+		ChatBus bus = this.bus;
+		if (bus != null) {
+			bus.send(nodeId, getOwner(frame.getChatName()), frame);
+		}
+	}
+
+	private void relayed(List<BusFrame> frames) {
+		for (BusFrame frame : frames) {
+			switch (frame.getType()) {
+			case ADMIT:
+				admit(frame);
+				break;
+			case ADMITTED:
+			case REJECTED:
+				admitted(frame);
+				break;
+			case FORWARD:
+				if (ownsLocally(frame.getChatName())) {
+					Chat chat = readoptChat(frame);
+					if (chat != null) {
+						chat.receiveForwarded(frame);
+					} else {
+						metrics.getEventsDropped().increment();
+					}
+				} else {
+					forward(frame);
+				}
+				break;
+			case HANDOFF:
+				adoptChat(frame.getChatName(), frame.getSequence(), frame.getRecentMessages());
+				break;
+			case USER_JOINED:
+				if (ownsLocally(frame.getChatName())) {
+					// A node holding it tells the new owner about its members
+					adoptChat(frame.getChatName(), frame.getSequence(), Collections.emptyList())
+							.receiveRelayed(frame);
+				} else {
+					deliverRelayed(frame);
+				}
+				break;
+			default:
+				deliverRelayed(frame);
+			}
+		}
+	}
+
+	private void deliverRelayed(BusFrame frame) {
+		Chat chat = chats.get(frame.getChatName());
+		if (chat != null) {
+			chat.receiveRelayed(frame);
+		}
+	}
+
+	// Only the chats next to the points of the nodes that came or went change
+	// owner, and only those are handed over
+	private void rebalance(HashRing ring) {
+		HashRing previousRing = this.ring;
+		this.ring = ring;
+		for (Chat chat : chats.values()) {
+			String owner = ring.ownerOf(chat.getName());
+			String previousOwner = previousRing == null ? nodeId : previousRing.ownerOf(chat.getName());
+			if (chat.retainRemoteMembers(ring.getNodes())) {
+				chatEmptied(chat);
+			}
+			if (nodeId.equals(owner)) {
+				if (chat.takeOwnership(0)) {
+					// Its owner left without handing it over
+					chatCapacity.acquireNow();
+				}
+			} else {
+				long nextSequence = chat.releaseOwnership();
+				if (nextSequence >= 0) {
+					bus.send(nodeId, owner, BusFrame.handoff(chat, nextSequence));
+					chatCapacity.release();
+					chatEmptied(chat);
+				}
+				if (!owner.equals(previousOwner)) {
+					// The new owner keeps the chat open while it has members here
+					for (User user : chat.getUsers()) {
+						bus.send(nodeId, owner, BusFrame.userJoined(chat, user, nodeId));
+					}
+				}
+			}
+		}
+	}
+
+	// The chat may already be full here; it is taken anyway, as it has members
+	// elsewhere, and new chats wait until enough are closed. The messages the
+	// previous owner kept are kept before any is numbered here.
+	private Chat adoptChat(String name, long nextSequence, List<BusFrame> recentMessages) {
+		Chat chat = createChat(name, false);
+		chat.restoreRecentMessages(recentMessages);
+		if (chat.takeOwnership(nextSequence)) {
+			chatCapacity.acquireNow();
+		}
+		return chat;
+	}
+
+	// A message for a chat closed here while its members elsewhere were not
+	// known yet opens it again only if there is capacity for it, numbering on
+	// from the last message the sending node saw
+	private Chat readoptChat(BusFrame frame) {
+		Chat chat = chats.get(frame.getChatName());
+		if (chat != null && chat.isOwned()) {
+			return chat;
+		}
+		if (!chatCapacity.tryAcquire()) {
+			return null;
+		}
+		chat = createChat(frame.getChatName(), false);
+		if (!chat.takeOwnership(frame.getSequence())) {
+			chatCapacity.release();
+		}
+		return chat;
+	}
+
+	private void admit(BusFrame frame) {
+		String name = frame.getChatName();
+		newChatAsync(name, frame.getTimeoutMillis(), TimeUnit.MILLISECONDS).whenComplete((chat, error) -> bus
+				.send(nodeId, frame.getNodeId(), error == null ? BusFrame.admitted(name) : BusFrame.rejected(name)));
+	}
+
+	private void admitted(BusFrame frame) {
+		CompletableFuture<Void> admission = admissions.get(frame.getChatName());
+		if (admission == null) {
+			return;
+		}
+		if (frame.getType() == BusFrame.Type.ADMITTED) {
+			admission.complete(null);
+		} else {
+			admission.completeExceptionally(new TimeoutException("Timed out waiting for capacity to create new chat"));
+		}
+	}
+
+	// Requests for the same chat share the answer of its owner
+	private CompletableFuture<Void> requestAdmission(String name, String owner, long timeout, TimeUnit unit) {
+		boolean[] requested = new boolean[1];
+		CompletableFuture<Void> admission = admissions.computeIfAbsent(name, n -> {
+			requested[0] = true;
+			return new CompletableFuture<>();
+		});
+		if (requested[0]) {
+			ScheduledFuture<?> timeoutTask = deliveryScheduler.schedule(
+					() -> admission.completeExceptionally(new TimeoutException(
+							"Timed out waiting for node \'" + owner + "\' to admit chat \'" + name + "\'")),
+					timeout, unit);
+			admission.whenComplete((granted, error) -> {
+				timeoutTask.cancel(false);
+				admissions.remove(name, admission);
+			});
+			bus.send(nodeId, owner, BusFrame.admit(name, nodeId, unit.toMillis(timeout)));
+		}
+		return admission;
+	}
+
+	/**
+	 * Users whose connection drops keep their place in their chats for the
+	 * given time, see detachUser. A grace period of 0, the default, removes
+	 * them right away.
+	 */
+	public void setDetachedUserGracePeriod(long gracePeriod, TimeUnit unit) {
+		if (gracePeriod < 0) {
+			throw new IllegalArgumentException("Grace period must not be negative");
+		}
+		this.detachedUserGraceNanos = unit.toNanos(gracePeriod);
+	}
+
+	// Upper bound of the messages sent to a user coming back, as more would
+	// only overflow its queue
+	int getGapFillLimit() {
+		return deliveryScheduler.getQueueCapacity();
 	}
 
 	public void newUser(User user) {
+		newUser(user, true);
+	}
+
+	/**
+	 * Registers the user. Only users subscribed to the lobby are told about
+	 * chats being created and closed.
+	 */
+	public void newUser(User user, boolean subscribeToLobby) {
 
-		users.compute(user.getName(), (name, mappedHandler) -> {
+		UserCallbackHandler handler = users.compute(user.getName(), (name, mappedHandler) -> {
 			if (mappedHandler != null) {
 				throw new IllegalArgumentException("There is already a user with name \'" + user.getName() + "\'");
 			}
-			return new UserCallbackHandler(user);
+			return new UserCallbackHandler(user, deliveryScheduler, metrics);
 		});
+
+		if (subscribeToLobby) {
+			lobby.subscribe(handler);
+		}
+	}
+
+	public void subscribeToLobby(User user) {
+		UserCallbackHandler handler = users.get(user.getName());
+		if (handler == null || handler.getHandledUser() != user) {
+			throw new IllegalArgumentException("User \'" + user.getName() + "\' is not registered");
+		}
+		lobby.subscribe(handler);
+	}
+
+	public void unsubscribeFromLobby(User user) {
+		UserCallbackHandler handler = users.get(user.getName());
+		if (handler != null && handler.getHandledUser() == user) {
+			lobby.unsubscribe(handler);
+		}
+	}
+
+	public boolean isSubscribedToLobby(User user) {
+		UserCallbackHandler handler = users.get(user.getName());
+		return handler != null && handler.getHandledUser() == user && lobby.isSubscribed(handler);
+	}
+
+	/**
+	 * Takes the user out of every chat it joined, stops its deliveries and
+	 * makes its name available again.
+	 */
+	public void removeUser(User user) {
+
+		UserCallbackHandler handler = users.get(user.getName());
+		if (handler == null || handler.getHandledUser() != user) {
+			return;
+		}
+
+		lobby.unsubscribe(handler);
+		for (Chat chat : handler.getChats()) {
+			chat.removeUser(user);
+		}
+
+		if (users.remove(user.getName(), handler)) {
+			handler.shutdown();
+		}
+	}
+
+	/**
+	 * Stops delivering to a user whose connection dropped, but keeps it in its
+	 * chats, with its name taken, for the grace period. Nobody is told it
+	 * left unless the grace period ends without resumeUser being called.
+	 */
+	public void detachUser(User user) {
+
+		UserCallbackHandler handler = users.get(user.getName());
+		if (handler == null || handler.getHandledUser() != user) {
+			return;
+		}
+		long gracePeriod = detachedUserGraceNanos;
+		if (gracePeriod == 0) {
+			removeUser(user);
+			return;
+		}
+
+		handler.detach();
+		deliveryScheduler.schedule(() -> {
+			if (handler.endDetachment()) {
+				removeUser(user);
+			}
+		}, gracePeriod, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gives a detached user with the same name back its place in its chats,
+	 * delivering to the given user from now on. It is first sent the
+	 * messages of each chat it missed: those after the sequence number given
+	 * for the chat, or the same ones as a joining user when none is given.
+	 * Returns false if there is no detached user with that name, in which
+	 * case it has to be registered with newUser.
+	 */
+	public boolean resumeUser(User user, boolean subscribeToLobby, Map<String, Long> lastSequences) {
+		return resumeUser(null, user, subscribeToLobby, lastSequences);
+	}
+
+	/**
+	 * Like resumeUser, but only gives the place back if the detached user is
+	 * the given one, when it is not null, and not whoever else with its name
+	 * was detached since.
+	 */
+	public boolean resumeUser(User detached, User user, boolean subscribeToLobby, Map<String, Long> lastSequences) {
+
+		UserCallbackHandler previousHandler = users.get(user.getName());
+		if (previousHandler == null || (detached != null && previousHandler.getHandledUser() != detached)
+				|| !previousHandler.endDetachment()) {
+			return false;
+		}
+
+		UserCallbackHandler handler = new UserCallbackHandler(user, deliveryScheduler, metrics);
+		users.replace(user.getName(), previousHandler, handler);
+		lobby.unsubscribe(previousHandler);
+		if (subscribeToLobby) {
+			lobby.subscribe(handler);
+		}
+		for (Chat chat : previousHandler.getChats()) {
+			chat.resumeUser(previousHandler, handler, lastSequences.get(chat.getName()));
+		}
+		previousHandler.shutdown();
+		return true;
 	}
 
 	public Chat newChat(String name, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
 
-		ensureChatCapacity(timeout, unit);
+		CompletableFuture<Chat> chat = newChatAsync(name, timeout, unit);
+		try {
+			return chat.get();
+		} catch (InterruptedException e) {
+			chat.cancel(false);
+			throw e;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof TimeoutException) {
+				throw (TimeoutException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Returns the chat with the given name, creating it when there is capacity
+	 * for it. When there is not, the future completes once capacity is released
+	 * to this request, waiters being served in arrival order, or exceptionally
+	 * with a TimeoutException. Cancelling the future gives up its place.
+	 */
+	public CompletableFuture<Chat> newChatAsync(String name, long timeout, TimeUnit unit) {
+
+		Chat existingChat = chats.get(name);
+		if (existingChat != null) {
+			return CompletableFuture.completedFuture(existingChat);
+		}
 
-		return chats.computeIfAbsent(name, n -> {
-			Chat newChat = new Chat(this, name);
-			for (UserCallbackHandler handler : users.values()) {
-				handler.newChat(newChat);
+		long requestedAt = System.nanoTime();
+		boolean local = ownsLocally(name);
+		CompletableFuture<Void> admission = local ? chatCapacity.acquire(timeout, unit)
+				: requestAdmission(name, getOwner(name), timeout, unit);
+		CompletableFuture<Chat> chat = new CompletableFuture<>();
+
+		admission.whenComplete((granted, error) -> {
+			if (error == null) {
+				metrics.getCapacityWait().recordSince(requestedAt);
+				if (chat.isCancelled()) {
+					// Given up while the capacity was being granted
+					if (local) {
+						chatCapacity.release();
+					}
+					return;
+				}
+				boolean[] created = new boolean[1];
+				Chat newChat = local ? createChatWithAcquiredCapacity(name, created) : createChat(name, false);
+				if (!chat.complete(newChat) && created[0] && newChat.getUserCount() == 0) {
+					// Given up while it was being created, and nobody joined it since
+					closeChat(newChat);
+				}
+				return;
+			}
+			// Someone else may have created it while we were waiting
+			Chat createdMeanwhile = chats.get(name);
+			if (createdMeanwhile != null && !(error instanceof CancellationException)) {
+				chat.complete(createdMeanwhile);
+			} else {
+				chat.completeExceptionally(error);
+			}
+		});
+
+		chat.whenComplete((created, error) -> {
+			// Other requests may be waiting for the same admission by the owner
+			if (chat.isCancelled() && local) {
+				admission.cancel(false);
 			}
-			return newChat;
 		});
+
+		return chat;
 	}
 
-	private void ensureChatCapacity(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
-		if (chatTokens.poll(timeout, unit) == null) {
-			throw new TimeoutException("Timed out waiting for capacity to create new chat");
+	private Chat createChatWithAcquiredCapacity(String name, boolean[] created) {
+		Chat chat = createChat(name, true, created);
+
+		// Capacity is only charged once for each chat this node owns
+		if (!created[0] && !chat.takeOwnership(0)) {
+			chatCapacity.release();
 		}
+		return chat;
 	}
 
-	public void closeChat(Chat chat) {
-		chats.computeIfPresent(chat.getName(), (chatName, chatToRemove) -> {
-			for (UserCallbackHandler handler : users.values()) {
-				handler.chatClosed(chatToRemove);
-			}
-			increaseChatCapacity();
-			return null;
+	private Chat createChat(String name, boolean owned) {
+		return createChat(name, owned, new boolean[1]);
+	}
+
+	private Chat createChat(String name, boolean owned, boolean[] created) {
+		Chat chat = chats.computeIfAbsent(name, n -> {
+			created[0] = true;
+			return new Chat(this, name, owned);
 		});
+
+		if (created[0]) {
+			ChatBus bus = this.bus;
+			if (bus != null) {
+				bus.subscribe(nodeId, name);
+			}
+			lobby.publish(ChatEvent.newChat(chat));
+			chatEmptied(chat);
+		}
+		return chat;
 	}
 
-	private void increaseChatCapacity() {
-		if (!chatTokens.add(new Object())) {
-			throw new RuntimeException("Failed to add chat capacity");
+	// Only empty chats have a pending reap check, one at most, so the timer
+	// holds as many tasks as there are empty chats and nothing is scanned
+	void chatEmptied(Chat chat) {
+		if (emptyChatTimeToLiveNanos > 0 && chat.startReapCountdown()) {
+			scheduleReap(chat, emptyChatTimeToLiveNanos);
+		}
+	}
+
+	private void scheduleReap(Chat chat, long delayNanos) {
+		deliveryScheduler.schedule(() -> reapIfIdle(chat), delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private void reapIfIdle(Chat chat) {
+		chat.reapCountdownFinished();
+		long remaining = chat.closeIfEmptyFor(emptyChatTimeToLiveNanos);
+		if (remaining == 0) {
+			closeChat(chat);
+		} else if (remaining > 0 && chat.startReapCountdown()) {
+			scheduleReap(chat, remaining);
+		}
+	}
+
+	// Capacity is released outside of the map so that the waiter it is handed
+	// to can create its chat right away
+	public void closeChat(Chat chat) {
+		boolean owned = chat.markClosed();
+		recentMessagesAvailable.addAndGet(chat.releaseRecentMessages());
+		if (chats.remove(chat.getName(), chat)) {
+			ChatBus bus = this.bus;
+			if (bus != null) {
+				bus.unsubscribe(nodeId, chat.getName());
+			}
+			lobby.publish(ChatEvent.chatClosed(chat));
+			chat.releaseHistory();
+			if (owned) {
+				chatCapacity.release();
+			}
 		}
 	}
 
@@ -76,17 +715,39 @@ public class ChatManager {
 		return chats.get(chatName);
 	}
 
+	/**
+	 * Live, read-only view of the registered users, see Chat.getUsers.
+	 */
 	public Collection<User> getUsers() {
-		return Collections.unmodifiableCollection(users.values().stream().map(userHandler -> {
-			return userHandler.getHandledUser();
-		}).collect(Collectors.toList()));
+		return usersView;
+	}
+
+	public List<User> getUsersSnapshot() {
+		return Collections.unmodifiableList(new ArrayList<>(usersView));
 	}
 
 	public User getUser(String userName) {
-		return users.get(userName).getHandledUser();
+		UserCallbackHandler handler = users.get(userName);
+		return handler == null ? null : handler.getHandledUser();
 	}
 
+	/**
+	 * Leaves the cluster, if in one, handing the chats this node owns over to
+	 * the nodes that stay.
+	 */
 	public void close() {
+		ChatBus bus = this.bus;
+		if (bus != null) {
+			Set<String> staying = new HashSet<>(getClusterNodes());
+			staying.remove(nodeId);
+			if (!staying.isEmpty()) {
+				rebalance(new HashRing(staying, virtualNodes));
+			}
+			bus.disconnect(nodeId);
+		}
+		if (ownsDeliveryScheduler) {
+			deliveryScheduler.shutdown();
+		}
 	}
 
 	public UserCallbackHandler getUserCallbackHandlerForUser(User user) {
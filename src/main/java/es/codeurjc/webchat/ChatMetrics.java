@@ -0,0 +1,213 @@
+package es.codeurjc.webchat;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, timers and gauges of a chat server, written out in the Prometheus
+ * text format. Recording only touches striped LongAdders, so it takes no
+ * locks and threads recording at once do not contend on a single counter;
+ * gauges are read when the metrics are scraped.
+ */
+public class ChatMetrics {
+
+	/**
+	 * Counts the events it times and adds up their durations. The maximum is
+	 * the longest duration since the previous scrape.
+	 */
+	public static class Timer {
+
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+		public void record(long nanos) {
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+		}
+
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.sum();
+		}
+	}
+
+	private static class Gauge {
+
+		private final String name;
+		private final String help;
+		private final LongSupplier value;
+
+		Gauge(String name, String help, LongSupplier value) {
+			this.name = name;
+			this.help = help;
+			this.value = value;
+		}
+	}
+
+	private final LongAdder messagesReceived = new LongAdder();
+	private final LongAdder eventsDelivered = new LongAdder();
+	private final LongAdder eventsDropped = new LongAdder();
+	private final LongAdder sendFailures = new LongAdder();
+
+	private final Timer capacityWait = new Timer();
+	private final Timer deliveryLag = new Timer();
+	private final Timer sendLatency = new Timer();
+	private final Timer parseTime = new Timer();
+
+	private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+	private final PayloadSampler traceSampler = new PayloadSampler(0);
+	private final Map<MessageTrace.Stage, LatencyHistogram> traceStages = new EnumMap<>(MessageTrace.Stage.class);
+
+	public ChatMetrics() {
+		for (MessageTrace.Stage stage : MessageTrace.Stage.values()) {
+			traceStages.put(stage, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Messages sent to chats by their members.
+	 */
+	public LongAdder getMessagesReceived() {
+		return messagesReceived;
+	}
+
+	/**
+	 * Events handed to users, one per recipient.
+	 */
+	public LongAdder getEventsDelivered() {
+		return eventsDelivered;
+	}
+
+	/**
+	 * Events that never reached their recipient because its queue overflowed
+	 * or it was disconnected.
+	 */
+	public LongAdder getEventsDropped() {
+		return eventsDropped;
+	}
+
+	public LongAdder getSendFailures() {
+		return sendFailures;
+	}
+
+	/**
+	 * Time from asking for a new chat until there is capacity for it.
+	 */
+	public Timer getCapacityWait() {
+		return capacityWait;
+	}
+
+	/**
+	 * Time from an event being created until it is handed to a recipient.
+	 */
+	public Timer getDeliveryLag() {
+		return deliveryLag;
+	}
+
+	/**
+	 * Time for a batch of frames to be written to a WebSocket session.
+	 */
+	public Timer getSendLatency() {
+		return sendLatency;
+	}
+
+	/**
+	 * Time to decode an inbound frame.
+	 */
+	public Timer getParseTime() {
+		return parseTime;
+	}
+
+	/**
+	 * Decides which inbound messages are traced, see {@link MessageTrace}.
+	 * Tracing is off until a sample rate is set.
+	 */
+	public PayloadSampler getTraceSampler() {
+		return traceSampler;
+	}
+
+	public LatencyHistogram getTraceStage(MessageTrace.Stage stage) {
+		return traceStages.get(stage);
+	}
+
+	public void registerGauge(String name, String help, LongSupplier value) {
+		gauges.add(new Gauge(name, help, value));
+	}
+
+	public String scrape() {
+		StringBuilder out = new StringBuilder(2048);
+		counter(out, "webchat_messages_received_total", "Messages sent to chats by users", messagesReceived);
+		counter(out, "webchat_events_delivered_total", "Events handed to users, one per recipient", eventsDelivered);
+		counter(out, "webchat_events_dropped_total", "Events dropped by overflowing or disconnected queues",
+				eventsDropped);
+		counter(out, "webchat_send_failures_total", "Failed writes to WebSocket sessions", sendFailures);
+		timer(out, "webchat_chat_capacity_wait_seconds", "Wait for capacity to create a chat", capacityWait);
+		timer(out, "webchat_delivery_lag_seconds", "Time from event creation to delivery", deliveryLag);
+		timer(out, "webchat_send_seconds", "Time to write a batch of frames to a session", sendLatency);
+		timer(out, "webchat_frame_parse_seconds", "Time to decode an inbound frame", parseTime);
+		traceStages(out);
+		for (Gauge gauge : gauges) {
+			header(out, gauge.name, gauge.help, "gauge");
+			out.append(gauge.name).append(' ').append(gauge.value.getAsLong()).append('\n');
+		}
+		return out.toString();
+	}
+
+	private static void header(StringBuilder out, String name, String help, String type) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void counter(StringBuilder out, String name, String help, LongAdder counter) {
+		header(out, name, help, "counter");
+		out.append(name).append(' ').append(counter.sum()).append('\n');
+	}
+
+	private static void timer(StringBuilder out, String name, String help, Timer timer) {
+		header(out, name, help, "summary");
+		out.append(name).append("_count ").append(timer.count.sum()).append('\n');
+		out.append(name).append("_sum ").append(seconds(timer.totalNanos.sum())).append('\n');
+		header(out, name + "_max", help + ", longest since the previous scrape", "gauge");
+		out.append(name).append("_max ").append(seconds(timer.maxNanos.getThenReset())).append('\n');
+	}
+
+	private void traceStages(StringBuilder out) {
+		String name = "webchat_trace_stage_seconds";
+		header(out, name, "Stages of sampled messages, see MessageTrace", "histogram");
+		for (Map.Entry<MessageTrace.Stage, LatencyHistogram> stage : traceStages.entrySet()) {
+			String label = stage.getKey().name().toLowerCase();
+			LatencyHistogram histogram = stage.getValue();
+			for (int i = 0; i < LatencyHistogram.BUCKET_SECONDS.length; i++) {
+				out.append(name).append("_bucket{stage=\"").append(label).append("\",le=\"")
+						.append(LatencyHistogram.BUCKET_SECONDS[i]).append("\"} ")
+						.append(histogram.getCumulativeCount(i)).append('\n');
+			}
+			long count = histogram.getCumulativeCount(LatencyHistogram.BUCKET_SECONDS.length);
+			out.append(name).append("_bucket{stage=\"").append(label).append("\",le=\"+Inf\"} ").append(count)
+					.append('\n');
+			out.append(name).append("_count{stage=\"").append(label).append("\"} ").append(count).append('\n');
+			out.append(name).append("_sum{stage=\"").append(label).append("\"} ")
+					.append(seconds(histogram.getTotalNanos())).append('\n');
+		}
+	}
+
+	private static double seconds(long nanos) {
+		return (double) nanos / TimeUnit.SECONDS.toNanos(1);
+	}
+}
@@ -0,0 +1,100 @@
+package es.codeurjc.webchat;
+
+/**
+ * A request sent by a chat client, already decoded from its wire frame.
+ */
+public abstract class ClientCommand {
+
+	public enum Type {
+		JOIN, MESSAGE
+	}
+
+	private final Type type;
+
+	protected ClientCommand(Type type) {
+		this.type = type;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public static class Join extends ClientCommand {
+
+		private final String chat;
+		private final String user;
+		private final boolean lobby;
+		private final Long lastSequence;
+		private final String resumeToken;
+
+		/**
+		 * Subscribes to the lobby, as a JSON join without "lobby" does.
+		 */
+		public Join(String chat, String user) {
+			this(chat, user, true);
+		}
+
+		public Join(String chat, String user, boolean lobby) {
+			this(chat, user, lobby, null);
+		}
+
+		public Join(String chat, String user, boolean lobby, Long lastSequence) {
+			this(chat, user, lobby, lastSequence, null);
+		}
+
+		public Join(String chat, String user, boolean lobby, Long lastSequence, String resumeToken) {
+			super(Type.JOIN);
+			this.chat = chat;
+			this.user = user;
+			this.lobby = lobby;
+			this.lastSequence = lastSequence;
+			this.resumeToken = resumeToken;
+		}
+
+		public String getChat() {
+			return chat;
+		}
+
+		public String getUser() {
+			return user;
+		}
+
+		/**
+		 * Whether the client wants to hear about chats being created and closed.
+		 */
+		public boolean isLobby() {
+			return lobby;
+		}
+
+		/**
+		 * Sequence number of the last message a reconnecting client got from
+		 * the chat, null if it got none or is connecting for the first time.
+		 */
+		public Long getLastSequence() {
+			return lastSequence;
+		}
+
+		/**
+		 * Token the server gave the client when it last joined, which a
+		 * reconnecting client presents to take its place back. Null if it
+		 * is connecting for the first time.
+		 */
+		public String getResumeToken() {
+			return resumeToken;
+		}
+	}
+
+	public static class Message extends ClientCommand {
+
+		private final String message;
+
+		public Message(String message) {
+			super(Type.MESSAGE);
+			this.message = message;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+}
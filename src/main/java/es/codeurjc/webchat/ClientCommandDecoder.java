@@ -0,0 +1,116 @@
+package es.codeurjc.webchat;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Decodes the JSON frames sent by clients straight into {@link ClientCommand}s
+ * with a streaming parser, reading only the fields it knows about and never
+ * building a tree. Oversized frames are rejected before parsing starts.
+ */
+public class ClientCommandDecoder {
+
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 4096;
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private final int maxFrameLength;
+
+	public ClientCommandDecoder() {
+		this(DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	public ClientCommandDecoder(int maxFrameLength) {
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	public ClientCommand decode(String frame) throws InvalidCommandException {
+		if (frame.length() > maxFrameLength) {
+			throw new InvalidCommandException(
+					"Frame of " + frame.length() + " chars exceeds the limit of " + maxFrameLength);
+		}
+
+		String chat = null;
+		String user = null;
+		String message = null;
+		// Clients that do not say are told about chats, as ChatManager.newUser does
+		boolean lobby = true;
+		Long lastSequence = null;
+		String resumeToken = null;
+
+		try (JsonParser parser = jsonFactory.createParser(frame)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new InvalidCommandException("Frame is not a JSON object");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				switch (field) {
+				case "chat":
+					chat = scalarText(parser, value, field);
+					break;
+				case "user":
+					user = scalarText(parser, value, field);
+					break;
+				case "message":
+					message = scalarText(parser, value, field);
+					break;
+				case "lobby":
+					if (value != JsonToken.VALUE_TRUE && value != JsonToken.VALUE_FALSE) {
+						throw new InvalidCommandException("Field 'lobby' must be a boolean");
+					}
+					lobby = value == JsonToken.VALUE_TRUE;
+					break;
+				case "lastSeq":
+					if (value != JsonToken.VALUE_NUMBER_INT && value != JsonToken.VALUE_NULL) {
+						throw new InvalidCommandException("Field 'lastSeq' must be an integer");
+					}
+					lastSequence = value == JsonToken.VALUE_NULL ? null : parser.getLongValue();
+					break;
+				case "resumeToken":
+					resumeToken = scalarText(parser, value, field);
+					break;
+				default:
+					parser.skipChildren();
+				}
+			}
+			if (parser.getCurrentToken() != JsonToken.END_OBJECT || parser.nextToken() != null) {
+				throw new InvalidCommandException("Unexpected content after the JSON object");
+			}
+		} catch (JsonProcessingException e) {
+			throw new InvalidCommandException("Malformed JSON frame", e);
+		} catch (IOException e) {
+			throw new InvalidCommandException("Unreadable frame", e);
+		}
+
+		if (chat != null) {
+			if (user == null) {
+				throw new InvalidCommandException("Join command without 'user'");
+			}
+			return new ClientCommand.Join(chat, user, lobby, lastSequence, resumeToken);
+		}
+		if (message != null) {
+			return new ClientCommand.Message(message);
+		}
+		throw new InvalidCommandException("Frame is neither a join nor a message");
+	}
+
+	private static String scalarText(JsonParser parser, JsonToken value, String field)
+			throws IOException, InvalidCommandException {
+		if (value == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		if (!value.isScalarValue()) {
+			throw new InvalidCommandException("Field '" + field + "' must be a scalar value");
+		}
+		return parser.getText();
+	}
+}
@@ -0,0 +1,75 @@
+package es.codeurjc.webchat;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.websocket.Endpoint;
+import javax.websocket.Extension;
+
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.socket.server.HandshakeFailureException;
+import org.springframework.web.socket.server.standard.TomcatRequestUpgradeStrategy;
+
+/**
+ * Decides whether Tomcat may compress a session with permessage-deflate.
+ * Tomcat negotiates its installed extensions from the request headers
+ * whatever Spring selected, so the extensions header is hidden from it when
+ * it must not. It is never used with sessions speaking the
+ * {@link DeflateProtocol}, whose frames are already compressed.
+ */
+public class CompressionUpgradeStrategy extends TomcatRequestUpgradeStrategy {
+
+	private static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+
+	private final boolean perMessageDeflate;
+
+	public CompressionUpgradeStrategy(boolean perMessageDeflate) {
+		this.perMessageDeflate = perMessageDeflate;
+	}
+
+	public boolean isPerMessageDeflate() {
+		return perMessageDeflate;
+	}
+
+	@Override
+	public void upgradeInternal(ServerHttpRequest request, ServerHttpResponse response, String selectedProtocol,
+			List<Extension> selectedExtensions, Endpoint endpoint) throws HandshakeFailureException {
+		if (perMessageDeflate && !DeflateProtocol.SUBPROTOCOL.equals(selectedProtocol)) {
+			super.upgradeInternal(request, response, selectedProtocol, selectedExtensions, endpoint);
+		} else {
+			ServerHttpRequest withoutExtensions = new ServletServerHttpRequest(
+					new WithoutExtensions(getHttpServletRequest(request)));
+			super.upgradeInternal(withoutExtensions, response, selectedProtocol, Collections.emptyList(), endpoint);
+		}
+	}
+
+	private static class WithoutExtensions extends HttpServletRequestWrapper {
+
+		WithoutExtensions(HttpServletRequest request) {
+			super(request);
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return EXTENSIONS_HEADER.equalsIgnoreCase(name) ? null : super.getHeader(name);
+		}
+
+		@Override
+		public Enumeration<String> getHeaders(String name) {
+			return EXTENSIONS_HEADER.equalsIgnoreCase(name) ? Collections.emptyEnumeration()
+					: super.getHeaders(name);
+		}
+
+		@Override
+		public Enumeration<String> getHeaderNames() {
+			List<String> names = Collections.list(super.getHeaderNames());
+			names.removeIf(EXTENSIONS_HEADER::equalsIgnoreCase);
+			return Collections.enumeration(names);
+		}
+	}
+}
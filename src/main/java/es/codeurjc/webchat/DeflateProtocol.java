@@ -0,0 +1,66 @@
+package es.codeurjc.webchat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * The JSON frames of /chat compressed by the server, for clients that ask
+ * for the {@value #SUBPROTOCOL} subprotocol in their handshake. Frames
+ * shorter than a threshold are still sent as JSON text frames; longer ones
+ * are sent as binary frames holding the UTF-8 JSON as a raw deflate stream
+ * (RFC 1951) compressed with {@link #DICTIONARY} as preset dictionary. Every
+ * frame is a complete stream of its own, so it is compressed once and the
+ * same bytes are written to every recipient. Clients keep sending JSON text
+ * frames.
+ */
+public final class DeflateProtocol {
+
+	public static final String SUBPROTOCOL = "webchat.deflate.v1";
+
+	public static final int DEFAULT_MIN_LENGTH = 64;
+
+	/**
+	 * What the frames are made of, the most frequent last as deflate finds
+	 * the closest matches with fewer bits.
+	 */
+	public static final String DICTIONARY = "{\"type\":\"system\",\"message\":\"New chat '' Chat '' closed"
+			+ " User '' exited from chat '' New user '' in chat ''\"}"
+			+ "{\"name\":\"\",\"color\":\"\",\"message\":\"\",\"seq\":";
+
+	private static final byte[] dictionaryBytes = DICTIONARY.getBytes(StandardCharsets.UTF_8);
+
+	// Creating a Deflater allocates its native window, so a few are kept for
+	// reuse. Those that do not fit back in are ended right away.
+	private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(
+			Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+	private DeflateProtocol() {
+	}
+
+	static byte[] deflate(String frame) {
+		byte[] input = frame.getBytes(StandardCharsets.UTF_8);
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+		try {
+			deflater.setDictionary(dictionaryBytes);
+			deflater.setInput(input);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+			byte[] buffer = new byte[Math.max(64, input.length / 2)];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.reset();
+			if (!deflaters.offer(deflater)) {
+				deflater.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package es.codeurjc.webchat;
+
+/**
+ * Tells a {@link UserCallbackHandler} how the write of a batch of events
+ * ended, so that it can hand the next batch over or stop delivering to a
+ * broken connection.
+ */
+public interface DeliveryCallback {
+
+	public void completed();
+
+	public void failed(Throwable cause);
+
+}
@@ -0,0 +1,140 @@
+package es.codeurjc.webchat;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the callbacks of every {@link UserCallbackHandler} of a
+ * {@link ChatManager}. Handlers keep their own FIFO queue and only borrow a
+ * worker while they have pending callbacks, so the number of threads does not
+ * depend on the number of registered users. It also owns the single timer
+ * thread used for timeouts and delayed tasks, so waiting for something never
+ * needs a parked thread.
+ */
+public class DeliveryScheduler {
+
+	public static final int DEFAULT_BATCH_SIZE = 32;
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.COALESCE_SYSTEM_NOTICES;
+
+	private final ExecutorService workers;
+
+	private final ScheduledThreadPoolExecutor timer;
+
+	private final int batchSize;
+
+	private final boolean virtualThreads;
+
+	private final int queueCapacity;
+
+	private final OverflowPolicy overflowPolicy;
+
+	public DeliveryScheduler(int workerThreads) {
+		this(workerThreads, DEFAULT_BATCH_SIZE, false);
+	}
+
+	public DeliveryScheduler(int workerThreads, int batchSize, boolean preferVirtualThreads) {
+		this(workerThreads, batchSize, preferVirtualThreads, DEFAULT_QUEUE_CAPACITY, DEFAULT_OVERFLOW_POLICY);
+	}
+
+	public DeliveryScheduler(int workerThreads, int batchSize, boolean preferVirtualThreads, int queueCapacity,
+			OverflowPolicy overflowPolicy) {
+		if (workerThreads < 1) {
+			throw new IllegalArgumentException("At least one delivery worker is needed");
+		}
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be positive");
+		}
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("Queue capacity must be positive");
+		}
+		ExecutorService virtualExecutor = preferVirtualThreads ? newVirtualThreadExecutor() : null;
+		this.virtualThreads = virtualExecutor != null;
+		this.workers = virtualThreads ? virtualExecutor
+				: Executors.newFixedThreadPool(workerThreads, new DaemonThreadFactory("webchat-delivery-"));
+		this.timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("webchat-timer-"));
+		this.timer.setRemoveOnCancelPolicy(true);
+		this.batchSize = batchSize;
+		this.queueCapacity = queueCapacity;
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public static DeliveryScheduler withDefaults() {
+		return new DeliveryScheduler(defaultWorkerThreads(), DEFAULT_BATCH_SIZE, true);
+	}
+
+	public static int defaultWorkerThreads() {
+		return Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	Executor getExecutor() {
+		return workers;
+	}
+
+	public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+		return timer.schedule(task, delay, unit);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public boolean usesVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public void shutdown() {
+		timer.shutdown();
+		workers.shutdown();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		return timer.awaitTermination(timeout, unit)
+				&& workers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	// Java 8 is the target platform, so virtual threads are looked up reflectively
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	static class DaemonThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger counter = new AtomicInteger();
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
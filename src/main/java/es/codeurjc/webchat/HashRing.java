@@ -0,0 +1,79 @@
+package es.codeurjc.webchat;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Assigns chat names to the nodes of a cluster by consistent hashing. Every
+ * node is placed on a ring of hashes at several points, its virtual nodes,
+ * and a chat belongs to the first point at or after the hash of its name.
+ * Adding or removing a node only moves the chats next to its points, about
+ * one in every node count of them, and the virtual nodes spread those moves
+ * over all the other nodes. Rings are immutable: a new one is built when
+ * the nodes change.
+ */
+public final class HashRing {
+
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	private final NavigableMap<Long, String> points = new TreeMap<>();
+
+	private final Set<String> nodes;
+
+	public HashRing(Collection<String> nodes) {
+		this(nodes, DEFAULT_VIRTUAL_NODES);
+	}
+
+	public HashRing(Collection<String> nodes, int virtualNodes) {
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("Virtual nodes must be positive");
+		}
+		this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+		for (String node : this.nodes) {
+			for (int i = 0; i < virtualNodes; i++) {
+				// On a collision the smallest node id wins, whatever the order
+				// the nodes were given in
+				points.putIfAbsent(hash(node + "#" + i), node);
+			}
+		}
+	}
+
+	public Set<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Returns the node the given chat belongs to, or null if there are no
+	 * nodes.
+	 */
+	public String ownerOf(String chatName) {
+		if (points.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> point = points.ceilingEntry(hash(chatName));
+		return point == null ? points.firstEntry().getValue() : point.getValue();
+	}
+
+	// The first 8 bytes of the MD5 digest, which spreads similar names far apart
+	private static long hash(String key) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (digest[i] & 0xff);
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,203 @@
+package es.codeurjc.webchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ChatBus} for nodes running in the same JVM, as in tests. Frames
+ * for each node are queued in its own outbox and handed over in batches by a
+ * worker, the same way {@link UserCallbackHandler} drains the events of a
+ * user, so a slow node never holds up publishers or the other nodes. The
+ * same worker tells the node about the nodes connected, so its listener is
+ * never called from two threads at once.
+ */
+public class InProcessChatBus implements ChatBus {
+
+	private static final Logger log = LoggerFactory.getLogger(InProcessChatBus.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	private class Outbox implements Runnable {
+
+		private final Listener listener;
+		private final Queue<BusFrame> frames = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		// Only the latest view of the nodes is worth telling
+		private final AtomicReference<Set<String>> nodeIds = new AtomicReference<>();
+
+		Outbox(Listener listener) {
+			this.listener = listener;
+		}
+
+		void add(BusFrame frame) {
+			if (shutDown) {
+				return;
+			}
+			frames.add(frame);
+			schedule();
+		}
+
+		void nodesChanged(Set<String> nodeIds) {
+			this.nodeIds.set(nodeIds);
+			schedule();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				execute();
+			}
+		}
+
+		// Once the bus is shut down, whatever is still queued is dropped
+		private void execute() {
+			try {
+				workers.execute(this);
+			} catch (RejectedExecutionException e) {
+				frames.clear();
+				nodeIds.set(null);
+				scheduled.set(false);
+			}
+		}
+
+		@Override
+		public void run() {
+			Set<String> changedNodeIds = nodeIds.getAndSet(null);
+			try {
+				if (changedNodeIds != null) {
+					listener.nodesChanged(changedNodeIds);
+				}
+			} catch (RuntimeException e) {
+				log.warn("Bus listener failed nodes={}", changedNodeIds, e);
+			}
+			List<BusFrame> batch = new ArrayList<>(Math.min(batchSize, frames.size()));
+			BusFrame frame;
+			while (batch.size() < batchSize && (frame = frames.poll()) != null) {
+				batch.add(frame);
+			}
+			try {
+				if (!batch.isEmpty()) {
+					listener.received(batch);
+				}
+			} catch (RuntimeException e) {
+				log.warn("Bus listener failed frames={}", batch.size(), e);
+			}
+			scheduled.set(false);
+			if ((!frames.isEmpty() || nodeIds.get() != null) && scheduled.compareAndSet(false, true)) {
+				execute();
+			}
+		}
+	}
+
+	private final ConcurrentMap<String, Outbox> nodes = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, Set<String>> subscribers = new ConcurrentHashMap<>();
+
+	private final ExecutorService workers;
+
+	private final int batchSize;
+
+	private volatile boolean shutDown;
+
+	public InProcessChatBus() {
+		this(DEFAULT_BATCH_SIZE);
+	}
+
+	public InProcessChatBus(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be positive");
+		}
+		this.batchSize = batchSize;
+		this.workers = Executors.newCachedThreadPool(new DeliveryScheduler.DaemonThreadFactory("webchat-bus-"));
+	}
+
+	// Synchronized with disconnect so that the views of the nodes are told in
+	// the order they were taken
+	@Override
+	public synchronized void connect(String nodeId, Listener listener) {
+		if (nodes.putIfAbsent(nodeId, new Outbox(listener)) != null) {
+			throw new IllegalArgumentException("There is already a node with id \'" + nodeId + "\'");
+		}
+		nodesChanged();
+	}
+
+	@Override
+	public synchronized void disconnect(String nodeId) {
+		if (nodes.remove(nodeId) == null) {
+			return;
+		}
+		for (Set<String> chatSubscribers : subscribers.values()) {
+			chatSubscribers.remove(nodeId);
+		}
+		nodesChanged();
+	}
+
+	private void nodesChanged() {
+		Set<String> nodeIds = Collections.unmodifiableSet(new HashSet<>(nodes.keySet()));
+		for (Outbox outbox : nodes.values()) {
+			outbox.nodesChanged(nodeIds);
+		}
+	}
+
+	@Override
+	public void subscribe(String nodeId, String chatName) {
+		subscribers.compute(chatName, (name, chatSubscribers) -> {
+			Set<String> updated = chatSubscribers == null ? ConcurrentHashMap.newKeySet() : chatSubscribers;
+			updated.add(nodeId);
+			return updated;
+		});
+	}
+
+	@Override
+	public void unsubscribe(String nodeId, String chatName) {
+		subscribers.computeIfPresent(chatName, (name, chatSubscribers) -> {
+			chatSubscribers.remove(nodeId);
+			return chatSubscribers.isEmpty() ? null : chatSubscribers;
+		});
+	}
+
+	@Override
+	public void publish(String nodeId, BusFrame frame) {
+		Set<String> chatSubscribers = subscribers.get(frame.getChatName());
+		if (chatSubscribers == null) {
+			return;
+		}
+		for (String subscriber : chatSubscribers) {
+			Outbox outbox = subscriber.equals(nodeId) ? null : nodes.get(subscriber);
+			if (outbox != null) {
+				outbox.add(frame);
+			}
+		}
+	}
+
+	@Override
+	public void send(String nodeId, String toNodeId, BusFrame frame) {
+		Outbox outbox = nodes.get(toNodeId);
+		if (outbox != null) {
+			outbox.add(frame);
+		}
+	}
+
+	/**
+	 * Stops handing frames over. Frames published from then on are dropped.
+	 */
+	public void shutdown() {
+		shutDown = true;
+		workers.shutdown();
+	}
+}
@@ -0,0 +1,14 @@
+package es.codeurjc.webchat;
+
+public class InvalidCommandException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public InvalidCommandException(String message) {
+		super(message);
+	}
+
+	public InvalidCommandException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,65 @@
+package es.codeurjc.webchat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cumulative latency histogram with fixed buckets from 50 microseconds to 10
+ * seconds, recorded with one LongAdder per bucket so that it takes no locks.
+ */
+public class LatencyHistogram {
+
+	static final double[] BUCKET_SECONDS = { 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025,
+			0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+
+	static {
+		for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+			BUCKET_NANOS[i] = (long) (BUCKET_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+		}
+	}
+
+	// One more than there are bounds, for the values above the last one
+	private final LongAdder[] buckets = new LongAdder[BUCKET_NANOS.length + 1];
+	private final LongAdder totalNanos = new LongAdder();
+
+	public LatencyHistogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		int bucket = 0;
+		while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) {
+			bucket++;
+		}
+		buckets[bucket].increment();
+		totalNanos.add(nanos);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Values recorded that were at most as large as the given bucket bound,
+	 * the last index counting every value.
+	 */
+	long getCumulativeCount(int bucket) {
+		long count = 0;
+		for (int i = 0; i <= bucket; i++) {
+			count += buckets[i].sum();
+		}
+		return count;
+	}
+
+	long getTotalNanos() {
+		return totalNanos.sum();
+	}
+}
@@ -0,0 +1,97 @@
+package es.codeurjc.webchat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Carries the "New chat" and "Chat closed" notices to the users that asked for
+ * them, instead of to every registered user. With a notice window, notices
+ * are held and sent together once per window, and a chat that is created and
+ * closed within the same window is never announced at all.
+ */
+class LobbyFeed {
+
+	private final Set<UserCallbackHandler> subscribers = ConcurrentHashMap.newKeySet();
+
+	private final DeliveryScheduler scheduler;
+
+	private volatile long noticeWindowNanos;
+
+	// Keyed by chat, so a later notice about a chat replaces the earlier one
+	private final Map<Chat, ChatEvent> pendingNotices = new LinkedHashMap<>();
+
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	LobbyFeed(DeliveryScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	void subscribe(UserCallbackHandler handler) {
+		subscribers.add(handler);
+	}
+
+	void unsubscribe(UserCallbackHandler handler) {
+		subscribers.remove(handler);
+	}
+
+	boolean isSubscribed(UserCallbackHandler handler) {
+		return subscribers.contains(handler);
+	}
+
+	int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	void setNoticeWindow(long window, TimeUnit unit) {
+		if (window < 0) {
+			throw new IllegalArgumentException("Notice window must not be negative");
+		}
+		this.noticeWindowNanos = unit.toNanos(window);
+	}
+
+	void publish(ChatEvent notice) {
+		long window = noticeWindowNanos;
+		if (window == 0) {
+			fanOut(notice);
+			return;
+		}
+
+		synchronized (pendingNotices) {
+			ChatEvent previous = pendingNotices.get(notice.getChat());
+			if (previous != null && previous.getType() == ChatEvent.Type.NEW_CHAT
+					&& notice.getType() == ChatEvent.Type.CHAT_CLOSED) {
+				pendingNotices.remove(notice.getChat());
+			} else {
+				pendingNotices.put(notice.getChat(), notice);
+			}
+		}
+
+		if (flushScheduled.compareAndSet(false, true)) {
+			scheduler.schedule(() -> scheduler.getExecutor().execute(this::flush), window, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void flush() {
+		flushScheduled.set(false);
+		List<ChatEvent> notices;
+		synchronized (pendingNotices) {
+			notices = new ArrayList<>(pendingNotices.values());
+			pendingNotices.clear();
+		}
+		for (ChatEvent notice : notices) {
+			fanOut(notice);
+		}
+	}
+
+	private void fanOut(ChatEvent notice) {
+		for (UserCallbackHandler handler : subscribers) {
+			handler.deliver(notice);
+		}
+	}
+}
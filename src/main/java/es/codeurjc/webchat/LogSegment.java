@@ -0,0 +1,306 @@
+package es.codeurjc.webchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A memory-mapped piece of the log of a chat, holding consecutive messages
+ * from baseOffset on. The .log file starts with a header holding its size,
+ * followed by the records, each prefixed by its length and the CRC of the
+ * rest of it; the .index file holds, for every record, its position in the
+ * .log file plus one, so that a zero marks the end of the written records.
+ *
+ * Only the log writer thread appends. Readers only look at records that have
+ * been committed, which the writer publishes through a volatile offset in
+ * {@link ChatLog}, and only with absolute reads or duplicated buffers, between
+ * {@link #retain()} and {@link #release()}.
+ */
+class LogSegment {
+
+	private static final Logger log = LoggerFactory.getLogger(LogSegment.class);
+
+	private static final int MAGIC = 0x57434c31;
+
+	// Magic number and size of the .log file
+	private static final int HEADER_BYTES = 4 + 4;
+
+	// Length, CRC, timestamp and the lengths of the three strings
+	private static final int MIN_RECORD_BYTES = 4 + 4 + 8 + 2 + 2 + 4;
+
+	private final long baseOffset;
+	private final File logFile;
+	private final File indexFile;
+	private final MappedByteBuffer logBuffer;
+	private final MappedByteBuffer index;
+
+	private int records;
+	private int writePosition = HEADER_BYTES;
+	private volatile long lastTimestamp;
+
+	// Readers in the middle of a read plus one for the chat log while it
+	// keeps this segment. The files are unmapped once nobody is left.
+	private final AtomicInteger holders = new AtomicInteger(1);
+
+	private LogSegment(long baseOffset, File logFile, File indexFile, MappedByteBuffer logBuffer,
+			MappedByteBuffer index) {
+		this.baseOffset = baseOffset;
+		this.logFile = logFile;
+		this.indexFile = indexFile;
+		this.logBuffer = logBuffer;
+		this.index = index;
+	}
+
+	static String fileName(long baseOffset) {
+		return String.format("%020d", baseOffset);
+	}
+
+	static LogSegment open(File directory, long baseOffset, int segmentBytes) throws IOException {
+		File logFile = new File(directory, fileName(baseOffset) + ".log");
+		File indexFile = new File(directory, fileName(baseOffset) + ".index");
+
+		// The mappings stay valid once the files are closed. A segment keeps
+		// the size it was created with, whatever the size of new ones is now.
+		MappedByteBuffer logBuffer;
+		MappedByteBuffer index;
+		try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+			if (file.length() > 0) {
+				segmentBytes = readSize(file, logFile);
+			}
+			logBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+		}
+		logBuffer.putInt(0, MAGIC).putInt(4, segmentBytes);
+		try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+			index = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexBytes(segmentBytes));
+		} catch (IOException e) {
+			unmap(logBuffer);
+			throw e;
+		}
+
+		LogSegment segment = new LogSegment(baseOffset, logFile, indexFile, logBuffer, index);
+		segment.recover();
+		return segment;
+	}
+
+	private static int readSize(RandomAccessFile file, File logFile) throws IOException {
+		if (file.length() >= HEADER_BYTES) {
+			int magic = file.readInt();
+			int size = file.readInt();
+			if (magic == MAGIC && size == file.length()) {
+				return size;
+			}
+		}
+		throw new IOException("Not a log segment or truncated " + logFile);
+	}
+
+	private static int indexBytes(int segmentBytes) {
+		return (segmentBytes / MIN_RECORD_BYTES + 1) * 4;
+	}
+
+	// Counts the records already in the files, those written before a
+	// restart, up to the first one that was not completely written
+	private void recover() {
+		int entry;
+		while (records < index.capacity() / 4 && (entry = index.getInt(records * 4)) != 0) {
+			if (entry - 1 != writePosition || !isValidRecord(writePosition)) {
+				log.warn("Corrupt log segment, dropping its records from offset={} file={}", getNextOffset(),
+						logFile);
+				// Otherwise they would be found again once new records
+				// were written over them
+				for (int i = records; i < index.capacity() / 4 && index.getInt(i * 4) != 0; i++) {
+					index.putInt(i * 4, 0);
+				}
+				break;
+			}
+			writePosition += 4 + 4 + logBuffer.getInt(writePosition);
+			records++;
+		}
+		if (records > 0) {
+			lastTimestamp = logBuffer.getLong(index.getInt((records - 1) * 4) - 1 + 4 + 4);
+		} else {
+			lastTimestamp = logFile.lastModified();
+		}
+	}
+
+	private boolean isValidRecord(int position) {
+		if (position + MIN_RECORD_BYTES > logBuffer.capacity()) {
+			return false;
+		}
+		int length = logBuffer.getInt(position);
+		if (length < MIN_RECORD_BYTES - 4 - 4 || length > logBuffer.capacity() - position - 4 - 4) {
+			return false;
+		}
+		return logBuffer.getInt(position + 4) == crc(position + 4 + 4, length);
+	}
+
+	private int crc(int position, int length) {
+		ByteBuffer bytes = logBuffer.duplicate();
+		bytes.position(position).limit(position + length);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	long getBaseOffset() {
+		return baseOffset;
+	}
+
+	int getRecords() {
+		return records;
+	}
+
+	long getNextOffset() {
+		return baseOffset + records;
+	}
+
+	int getSizeBytes() {
+		return writePosition;
+	}
+
+	long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	/**
+	 * Whether the message fits in an empty segment of segmentBytes.
+	 */
+	static boolean fits(LoggedMessage message, int segmentBytes) {
+		return HEADER_BYTES + recordBytes(message) <= segmentBytes;
+	}
+
+	// Bytes the message takes in the .log file, length and CRC included
+	private static int recordBytes(LoggedMessage message) {
+		return 4 + 4 + length(message.getUserName().getBytes(StandardCharsets.UTF_8).length,
+				message.getUserColor().getBytes(StandardCharsets.UTF_8).length,
+				message.getMessage().getBytes(StandardCharsets.UTF_8).length);
+	}
+
+	private static int length(int userBytes, int colorBytes, int textBytes) {
+		return 8 + 2 + userBytes + 2 + colorBytes + 4 + textBytes;
+	}
+
+	/**
+	 * Writes the message unless it does not fit, in which case a new segment
+	 * has to be started.
+	 */
+	boolean append(LoggedMessage message) {
+		byte[] user = message.getUserName().getBytes(StandardCharsets.UTF_8);
+		byte[] color = message.getUserColor().getBytes(StandardCharsets.UTF_8);
+		byte[] text = message.getMessage().getBytes(StandardCharsets.UTF_8);
+		int length = length(user.length, color.length, text.length);
+
+		if (writePosition + 4 + 4 + length > logBuffer.capacity() || (records + 1) * 4 > index.capacity()) {
+			return false;
+		}
+
+		ByteBuffer out = logBuffer.duplicate();
+		out.position(writePosition);
+		out.putInt(length);
+		out.putInt(0);
+		out.putLong(message.getTimestamp());
+		out.putShort((short) user.length).put(user);
+		out.putShort((short) color.length).put(color);
+		out.putInt(text.length).put(text);
+		logBuffer.putInt(writePosition + 4, crc(writePosition + 4 + 4, length));
+
+		// The index entry goes last, so that a record is only found once complete
+		index.putInt(records * 4, writePosition + 1);
+		writePosition = out.position();
+		records++;
+		lastTimestamp = message.getTimestamp();
+		return true;
+	}
+
+	LoggedMessage read(long offset) {
+		int position = index.getInt((int) (offset - baseOffset) * 4) - 1;
+		ByteBuffer in = logBuffer.duplicate();
+		in.position(position + 4 + 4);
+		long timestamp = in.getLong();
+		String user = readString(in, in.getShort());
+		String color = readString(in, in.getShort());
+		String text = readString(in, in.getInt());
+		return new LoggedMessage(offset, timestamp, user, color, text);
+	}
+
+	private static String readString(ByteBuffer in, int length) {
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	void force() {
+		logBuffer.force();
+		index.force();
+	}
+
+	/**
+	 * Keeps the files mapped until {@link #release()}. Returns false if the
+	 * segment is already closed, as its records cannot be read any more.
+	 */
+	boolean retain() {
+		int current;
+		do {
+			current = holders.get();
+			if (current == 0) {
+				return false;
+			}
+		} while (!holders.compareAndSet(current, current + 1));
+		return true;
+	}
+
+	void release() {
+		if (holders.decrementAndGet() == 0) {
+			unmap(logBuffer);
+			unmap(index);
+		}
+	}
+
+	/**
+	 * Unmaps the files once the readers in the middle of a read are done.
+	 */
+	void close() {
+		release();
+	}
+
+	void delete() {
+		close();
+		logFile.delete();
+		indexFile.delete();
+	}
+
+	// A mapping otherwise lasts until its buffer is collected, which may be
+	// long after its files are deleted. Done as the JDK itself does it, the
+	// buffer must not be touched afterwards.
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner;
+			try {
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			} catch (NoSuchMethodException e) {
+				// Before Java 9
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+				return;
+			}
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			log.warn("Cannot unmap log segment, left to the garbage collector", e);
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package es.codeurjc.webchat;
+
+/**
+ * A chat message as stored in the {@link MessageLog}.
+ */
+public final class LoggedMessage {
+
+	private final long offset;
+	private final long timestamp;
+	private final String userName;
+	private final String userColor;
+	private final String message;
+
+	public LoggedMessage(long offset, long timestamp, String userName, String userColor, String message) {
+		this.offset = offset;
+		this.timestamp = timestamp;
+		this.userName = userName;
+		this.userColor = userColor;
+		this.message = message;
+	}
+
+	/**
+	 * Position of the message in the log of its chat, starting at 0.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Milliseconds since the epoch when the message was sent.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public String getUserColor() {
+		return userColor;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+}
@@ -0,0 +1,258 @@
+package es.codeurjc.webchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only history of the messages sent to every chat, kept on disk so
+ * that users joining a chat can be shown what was said before. Each chat has
+ * its own directory of memory-mapped segments, see {@link LogSegment}.
+ *
+ * Appending never touches the disk. A single writer thread takes whatever
+ * was appended to any chat since it last woke up, writes it and forces it to
+ * disk once for the whole batch, so the cost of a flush is shared by every
+ * message in it and the broadcast path never waits for one. The same thread
+ * drops the oldest segments of a chat once its history is larger or older
+ * than the retention limits.
+ */
+public class MessageLog {
+
+	private static final Logger log = LoggerFactory.getLogger(MessageLog.class);
+
+	public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+	private static final long RETENTION_CHECK_MILLIS = 1000;
+
+	// Mapping a segment fails if the thread is interrupted, so closing is
+	// noticed by polling instead
+	private static final long CLOSE_CHECK_MILLIS = 100;
+
+	private final File directory;
+
+	private final int segmentBytes;
+
+	private final long retentionBytes;
+
+	private final long retentionMillis;
+
+	private final boolean forceOnCommit;
+
+	private final ConcurrentMap<String, ChatLog> chatLogs = new ConcurrentHashMap<>();
+
+	private final BlockingQueue<ChatLog> queuedForWriting = new LinkedBlockingQueue<>();
+
+	private final Thread writer;
+
+	private volatile boolean closed;
+
+	/**
+	 * Keeps the history of each chat under the given directory, in segments of
+	 * segmentBytes, dropping whole segments once it is larger than
+	 * retentionBytes or they are older than retention. A retention of 0 keeps
+	 * segments regardless of their age.
+	 */
+	public MessageLog(File directory, int segmentBytes, long retentionBytes, long retention, TimeUnit unit) {
+		this(directory, segmentBytes, retentionBytes, retention, unit, true);
+	}
+
+	/**
+	 * Without forceOnCommit, writes are left to the operating system to flush,
+	 * which survives the process crashing but not the machine.
+	 */
+	public MessageLog(File directory, int segmentBytes, long retentionBytes, long retention, TimeUnit unit,
+			boolean forceOnCommit) {
+		if (segmentBytes < 1024) {
+			throw new IllegalArgumentException("Segments must be at least 1024 bytes");
+		}
+		if (retentionBytes < segmentBytes) {
+			throw new IllegalArgumentException("Retention must be at least one segment");
+		}
+		if (retention < 0) {
+			throw new IllegalArgumentException("Retention time must not be negative");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new UncheckedIOException(new IOException("Cannot create " + directory));
+		}
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.retentionBytes = retentionBytes;
+		this.retentionMillis = unit.toMillis(retention);
+		this.forceOnCommit = forceOnCommit;
+		this.writer = new DeliveryScheduler.DaemonThreadFactory("webchat-log-writer-").newThread(this::writeLoop);
+		this.writer.start();
+	}
+
+	int getSegmentBytes() {
+		return segmentBytes;
+	}
+
+	boolean isForceOnCommit() {
+		return forceOnCommit;
+	}
+
+	/**
+	 * Stores the message as the next one of the chat. It is on disk a moment
+	 * later, but readLast returns it right away.
+	 */
+	public void append(String chatName, User user, String message) {
+		ChatLog chatLog = acquireChatLog(chatName);
+		try {
+			chatLog.append(user, message);
+		} finally {
+			releaseChatLog(chatLog);
+		}
+	}
+
+	/**
+	 * Returns up to the last count messages of the chat, oldest first.
+	 */
+	public List<LoggedMessage> readLast(String chatName, int count) {
+		ChatLog chatLog = acquireChatLog(chatName);
+		try {
+			return chatLog.readLast(count);
+		} finally {
+			releaseChatLog(chatLog);
+		}
+	}
+
+	/**
+	 * Number of chats whose log is open, with its segments mapped.
+	 */
+	public int getOpenChatLogs() {
+		return chatLogs.size();
+	}
+
+	/**
+	 * Returns the log of the chat, opening it unless it is open already. It
+	 * stays open until every caller has released it and whatever was
+	 * appended to it is on disk.
+	 */
+	ChatLog acquireChatLog(String chatName) {
+		return chatLogs.compute(chatName, (name, chatLog) -> {
+			if (chatLog == null) {
+				try {
+					chatLog = new ChatLog(this, name, new File(directory, directoryName(name)));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			chatLog.addReference();
+			return chatLog;
+		});
+	}
+
+	// The writer closes the log, as only it knows when the last messages
+	// appended to it are on disk
+	void releaseChatLog(ChatLog chatLog) {
+		chatLogs.computeIfPresent(chatLog.getChatName(), (name, current) -> {
+			if (current == chatLog) {
+				current.removeReference();
+			}
+			return current;
+		});
+		queuedForWriting.add(chatLog);
+	}
+
+	// Retention is enforced before, as it is only enforced on open logs
+	private void closeIfUnused(ChatLog chatLog) {
+		if (chatLog.isUnused()) {
+			enforceRetention(chatLog, System.currentTimeMillis());
+			boolean[] removed = new boolean[1];
+			chatLogs.computeIfPresent(chatLog.getChatName(), (name, current) -> {
+				removed[0] = current == chatLog && current.isUnused();
+				return removed[0] ? null : current;
+			});
+			if (removed[0]) {
+				chatLog.close();
+			}
+		}
+	}
+
+	// Chat names may hold any character, so they are hashed into a safe name
+	private static String directoryName(String chatName) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(chatName.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return name.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	void queueForWriting(ChatLog chatLog) {
+		queuedForWriting.add(chatLog);
+	}
+
+	private void writeLoop() {
+		List<ChatLog> batch = new ArrayList<>();
+		long nextRetentionCheck = System.currentTimeMillis() + RETENTION_CHECK_MILLIS;
+		while (!closed || !queuedForWriting.isEmpty()) {
+			try {
+				ChatLog first = queuedForWriting.poll(CLOSE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queuedForWriting.drainTo(batch);
+					for (ChatLog chatLog : batch) {
+						chatLog.write();
+					}
+					for (ChatLog chatLog : batch) {
+						chatLog.commit();
+					}
+					for (ChatLog chatLog : batch) {
+						closeIfUnused(chatLog);
+					}
+					batch.clear();
+				}
+				long now = System.currentTimeMillis();
+				if (now >= nextRetentionCheck) {
+					for (ChatLog chatLog : chatLogs.values()) {
+						enforceRetention(chatLog, now);
+					}
+					nextRetentionCheck = now + RETENTION_CHECK_MILLIS;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException e) {
+				log.error("Message log writer failed", e);
+				batch.clear();
+			}
+		}
+		for (ChatLog chatLog : chatLogs.values()) {
+			chatLog.close();
+		}
+	}
+
+	private void enforceRetention(ChatLog chatLog, long now) {
+		chatLog.enforceRetention(retentionBytes, retentionMillis == 0 ? Long.MIN_VALUE : now - retentionMillis);
+	}
+
+	/**
+	 * Writes and forces whatever was appended so far and stops the writer.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package es.codeurjc.webchat;
+
+/**
+ * Timestamps of a sampled message on its way from the socket it came in on
+ * to the sockets of its recipients. Each stage is recorded, in the
+ * histograms of {@link ChatMetrics}, as soon as it ends; per recipient
+ * stages are recorded once for every recipient.
+ */
+public final class MessageTrace {
+
+	public enum Stage {
+		/** From the frame being received to it being decoded */
+		DECODE,
+		/** From the frame being received to the message being queued for every recipient */
+		FAN_OUT,
+		/** Time the message waited in a recipient's queue */
+		QUEUE,
+		/** From leaving the queue to the recipient's write completing */
+		SEND,
+		/** From the frame being received to the recipient's write completing */
+		TOTAL
+	}
+
+	private final long receivedAt;
+
+	public MessageTrace(long receivedAt) {
+		this.receivedAt = receivedAt;
+	}
+
+	/**
+	 * System.nanoTime() when the frame was received.
+	 */
+	public long getReceivedAt() {
+		return receivedAt;
+	}
+}
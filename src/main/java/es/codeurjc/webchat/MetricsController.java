@@ -0,0 +1,24 @@
+package es.codeurjc.webchat;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Exposes the metrics of the chat server in the Prometheus text format.
+ */
+@RestController
+public class MetricsController {
+
+	private static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+	private ChatManager chatManager;
+
+	public MetricsController(ChatManager chatManager) {
+		this.chatManager = chatManager;
+	}
+
+	@GetMapping(value = "/metrics", produces = PROMETHEUS_TEXT)
+	public String scrape() {
+		return chatManager.getMetrics().scrape();
+	}
+}
@@ -0,0 +1,24 @@
+package es.codeurjc.webchat;
+
+/**
+ * What a {@link UserCallbackHandler} does when a new event arrives and its
+ * outbound queue is already full.
+ */
+public enum OverflowPolicy {
+
+	/** Discard the oldest queued event to make room for the new one. */
+	DROP_OLDEST,
+
+	/** Discard the incoming event. */
+	DROP_NEWEST,
+
+	/**
+	 * Discard the oldest queued system notice, as they are informational and
+	 * superseded by later ones. Chat messages are only evicted, oldest first,
+	 * when no system notice is left to discard.
+	 */
+	COALESCE_SYSTEM_NOTICES,
+
+	/** Drop everything queued for the user and close its connection. */
+	DISCONNECT
+}
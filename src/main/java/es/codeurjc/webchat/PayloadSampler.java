@@ -0,0 +1,35 @@
+package es.codeurjc.webchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which inbound payloads get traced. While sampling is off the only
+ * cost per message is a volatile read; the rate can be changed at runtime.
+ */
+public class PayloadSampler {
+
+	private volatile int sampleRate;
+
+	private AtomicLong counter = new AtomicLong();
+
+	public PayloadSampler(int sampleRate) {
+		setSampleRate(sampleRate);
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	// Traces one message out of every sampleRate, 0 turns sampling off
+	public void setSampleRate(int sampleRate) {
+		if (sampleRate < 0) {
+			throw new IllegalArgumentException("Sample rate can't be negative");
+		}
+		this.sampleRate = sampleRate;
+	}
+
+	public boolean sample() {
+		int rate = sampleRate;
+		return rate != 0 && counter.incrementAndGet() % rate == 0;
+	}
+}
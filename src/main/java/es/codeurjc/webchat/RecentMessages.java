@@ -0,0 +1,83 @@
+package es.codeurjc.webchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last messages sent to a chat, kept in memory as the events that were
+ * broadcast, so their frames are already encoded and can be written to a
+ * joining user as they are. A fixed ring of slots indexed by the sequence
+ * number of the message: adding overwrites the oldest slot, and reading
+ * never blocks adding. Each slot remembers the sequence number it holds, so
+ * a reader skips slots that were overwritten, or not filled yet, while it
+ * read.
+ */
+class RecentMessages {
+
+	private static final class Entry {
+
+		private final long sequence;
+		private final ChatEvent event;
+
+		Entry(long sequence, ChatEvent event) {
+			this.sequence = sequence;
+			this.event = event;
+		}
+	}
+
+	private final AtomicReferenceArray<Entry> slots;
+
+	private final AtomicLong firstSequence = new AtomicLong(-1);
+
+	private final AtomicLong endSequence = new AtomicLong();
+
+	RecentMessages(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.slots = new AtomicReferenceArray<>(capacity);
+	}
+
+	int getCapacity() {
+		return slots.length();
+	}
+
+	/**
+	 * Whether no message has been overwritten yet.
+	 */
+	boolean holdsAll() {
+		return endSequence.get() - Math.max(0, firstSequence.get()) <= slots.length();
+	}
+
+	/**
+	 * The sequence number after that of the newest message added.
+	 */
+	long getEndSequence() {
+		return endSequence.get();
+	}
+
+	void add(ChatEvent event) {
+		long sequence = event.getSequence();
+		firstSequence.compareAndSet(-1, sequence);
+		slots.set((int) (sequence % slots.length()), new Entry(sequence, event));
+		endSequence.accumulateAndGet(sequence + 1, Math::max);
+	}
+
+	/**
+	 * Returns up to the last count messages, oldest first.
+	 */
+	List<ChatEvent> readLast(int count) {
+		long end = endSequence.get();
+		long start = Math.max(Math.max(0, firstSequence.get()), end - Math.min(count, slots.length()));
+		List<ChatEvent> events = new ArrayList<>((int) Math.max(0, end - start));
+		for (long sequence = start; sequence < end; sequence++) {
+			Entry entry = slots.get((int) (sequence % slots.length()));
+			if (entry != null && entry.sequence == sequence) {
+				events.add(entry.event);
+			}
+		}
+		return events;
+	}
+}
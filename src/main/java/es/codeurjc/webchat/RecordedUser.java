@@ -0,0 +1,48 @@
+package es.codeurjc.webchat;
+
+/**
+ * A user known only by the name and color it had when something was
+ * recorded: the author of a message read back from the {@link MessageLog},
+ * or a user on another node, see {@link ChatBus}. It is not a member of any
+ * chat on this node, so it never receives anything.
+ */
+public class RecordedUser implements User {
+
+	private final String name;
+	private final String color;
+
+	public RecordedUser(String name, String color) {
+		this.name = name;
+		this.color = color;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String getColor() {
+		return color;
+	}
+
+	@Override
+	public void newChat(Chat chat) {
+	}
+
+	@Override
+	public void chatClosed(Chat chat) {
+	}
+
+	@Override
+	public void newUserInChat(Chat chat, User user) {
+	}
+
+	@Override
+	public void userExitedFromChat(Chat chat, User user) {
+	}
+
+	@Override
+	public void newMessage(Chat chat, User user, String message) {
+	}
+}
@@ -0,0 +1,108 @@
+package es.codeurjc.webchat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Pages through the members of a chat in name order. Each page carries the
+ * name to pass as 'after' to get the next one, null on the last page.
+ */
+@RestController
+public class RosterController {
+
+	public static final int DEFAULT_PAGE_SIZE = 100;
+
+	public static final int MAX_PAGE_SIZE = 1000;
+
+	private ChatManager chatManager;
+
+	public RosterController(ChatManager chatManager) {
+		this.chatManager = chatManager;
+	}
+
+	@GetMapping("/chats/{chat}/users")
+	public ResponseEntity<RosterPage> getRoster(@PathVariable("chat") String chatName,
+			@RequestParam(value = "after", required = false) String after,
+			@RequestParam(value = "limit", defaultValue = "" + DEFAULT_PAGE_SIZE) int limit) {
+
+		if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+
+		Chat chat = chatManager.getChat(chatName);
+		if (chat == null) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+
+		// One more than asked for tells whether there is a next page
+		List<User> users = chat.getUsers(after, limit + 1);
+		String next = null;
+		if (users.size() > limit) {
+			users = users.subList(0, limit);
+			next = users.get(limit - 1).getName();
+		}
+
+		List<Member> members = new ArrayList<>(users.size());
+		for (User user : users) {
+			members.add(new Member(user.getName(), user.getColor()));
+		}
+		return ResponseEntity.ok(new RosterPage(chat.getName(), chat.getUserCount(), members, next));
+	}
+
+	public static class RosterPage {
+
+		private final String chat;
+		private final int total;
+		private final List<Member> users;
+		private final String next;
+
+		public RosterPage(String chat, int total, List<Member> users, String next) {
+			this.chat = chat;
+			this.total = total;
+			this.users = users;
+			this.next = next;
+		}
+
+		public String getChat() {
+			return chat;
+		}
+
+		public int getTotal() {
+			return total;
+		}
+
+		public List<Member> getUsers() {
+			return users;
+		}
+
+		public String getNext() {
+			return next;
+		}
+	}
+
+	public static class Member {
+
+		private final String name;
+		private final String color;
+
+		public Member(String name, String color) {
+			this.name = name;
+			this.color = color;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getColor() {
+			return color;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package es.codeurjc.webchat;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Reads and changes the message tracing sample rate at runtime, so tracing
+ * can be turned up while chasing a latency spike and down again afterwards.
+ */
+@RestController
+public class TracingController {
+
+	private ChatManager chatManager;
+
+	public TracingController(ChatManager chatManager) {
+		this.chatManager = chatManager;
+	}
+
+	@GetMapping("/tracing")
+	public int getSampleRate() {
+		return chatManager.getMetrics().getTraceSampler().getSampleRate();
+	}
+
+	@PutMapping("/tracing")
+	public ResponseEntity<Integer> setSampleRate(@RequestParam("sampleRate") int sampleRate) {
+		if (sampleRate < 0) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		chatManager.getMetrics().getTraceSampler().setSampleRate(sampleRate);
+		return ResponseEntity.ok(sampleRate);
+	}
+}
@@ -1,45 +1,318 @@
 package es.codeurjc.webchat;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class UserCallbackHandler {
 
+	private static final Logger log = LoggerFactory.getLogger(UserCallbackHandler.class);
+
 	private User handledUser;
 
-	private ExecutorService executor;
+	private DeliveryScheduler scheduler;
+
+	// Guarded by itself. Producers and the draining worker only hold the lock
+	// to move events in and out, never while calling the user.
+	private Deque<ChatEvent> pendingEvents = new ArrayDeque<>();
+
+	private volatile int queueDepth;
+
+	private AtomicLong droppedEvents = new AtomicLong();
+
+	private AtomicBoolean scheduled = new AtomicBoolean();
+
+	private volatile boolean disconnected;
+
+	private AtomicBoolean disconnectRequested = new AtomicBoolean();
+
+	private volatile boolean detached;
+
+	private AtomicBoolean detachmentEnded = new AtomicBoolean();
+
+	private Set<Chat> chats = ConcurrentHashMap.newKeySet();
+
+	private ChatMetrics metrics;
+
+	// Traced events of the batch in flight, null when it has none. Only one
+	// batch is in flight at a time, but it may complete on another thread.
+	private volatile List<ChatEvent> tracedInFlight;
+	private volatile long inFlightSince;
+
+	// Handed to receivers with each batch. Kept private so that only they can
+	// tell this handler a batch is done.
+	private final DeliveryCallback batchCallback = new DeliveryCallback() {
+
+		@Override
+		public void completed() {
+			batchCompleted();
+		}
+
+		@Override
+		public void failed(Throwable cause) {
+			batchFailed(cause);
+		}
+	};
+
+	// Handed to the executor. Kept private so that nobody else can drain the
+	// queue alongside the scheduler and break the FIFO order of the events.
+	private final Runnable drainTask = this::deliverBatch;
 
-	public UserCallbackHandler(User user) {
+	public UserCallbackHandler(User user, DeliveryScheduler scheduler) {
+		this(user, scheduler, new ChatMetrics());
+	}
+
+	public UserCallbackHandler(User user, DeliveryScheduler scheduler, ChatMetrics metrics) {
 		this.handledUser = user;
-		executor = Executors.newSingleThreadExecutor();
+		this.scheduler = scheduler;
+		this.metrics = metrics;
+	}
+
+	public User getHandledUser() {
+		return handledUser;
+	}
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public long getDroppedEvents() {
+		return droppedEvents.get();
+	}
+
+	private void countDropped(long events) {
+		droppedEvents.addAndGet(events);
+		metrics.getEventsDropped().add(events);
+	}
+
+	public boolean isDisconnected() {
+		return disconnected;
+	}
+
+	void joinedChat(Chat chat) {
+		chats.add(chat);
+	}
+
+	void exitedChat(Chat chat) {
+		chats.remove(chat);
+	}
+
+	Set<Chat> getChats() {
+		return chats;
 	}
 
-	public void newUserInChat(Chat chat, User user) {
-		if (user != handledUser) {
-			executor.submit(() -> handledUser.newUserInChat(chat, user));
+	// Stops delivering to the user and releases whatever was queued for it
+	void shutdown() {
+		synchronized (pendingEvents) {
+			pendingEvents.clear();
+			queueDepth = 0;
+			disconnected = true;
 		}
+		chats.clear();
 	}
 
-	public void userExitedFromChat(Chat chat, User user) {
-		if (user != handledUser) {
-			executor.submit(() -> handledUser.userExitedFromChat(chat, user));
+	/**
+	 * Stops delivering to a user whose connection dropped but that keeps its
+	 * place in its chats for a while. Whatever it misses meanwhile is not
+	 * counted as dropped, as it is sent again if the user comes back.
+	 */
+	void detach() {
+		synchronized (pendingEvents) {
+			detached = true;
+			pendingEvents.clear();
+			queueDepth = 0;
+			disconnected = true;
 		}
 	}
 
-	public User getHandledUser() {
-		return handledUser;
+	public boolean isDetached() {
+		return detached;
+	}
+
+	/**
+	 * Ends the detachment, either because the user came back or because it
+	 * did not in time. Returns true to only one of them.
+	 */
+	boolean endDetachment() {
+		return detached && detachmentEnded.compareAndSet(false, true);
+	}
+
+	public void deliver(ChatEvent event) {
+		if (event.isMembershipChangeOf(handledUser) || detached) {
+			return;
+		}
+		if (disconnected) {
+			countDropped(1);
+			return;
+		}
+		if (enqueue(event)) {
+			scheduleIfIdle();
+		} else if (disconnected && disconnectRequested.compareAndSet(false, true)) {
+			disconnectHandledUser();
+		}
+	}
+
+	private boolean enqueue(ChatEvent event) {
+		synchronized (pendingEvents) {
+			if (disconnected) {
+				countDropped(1);
+				return false;
+			}
+			if (pendingEvents.size() >= scheduler.getQueueCapacity() && !makeRoomFor(event)) {
+				return false;
+			}
+			pendingEvents.addLast(event);
+			queueDepth = pendingEvents.size();
+			return true;
+		}
+	}
+
+	private boolean makeRoomFor(ChatEvent event) {
+		switch (scheduler.getOverflowPolicy()) {
+		case DROP_OLDEST:
+			pendingEvents.pollFirst();
+			break;
+		case DROP_NEWEST:
+			countDropped(1);
+			return false;
+		case COALESCE_SYSTEM_NOTICES:
+			if (!removeOldestSystemNotice()) {
+				if (event.isSystemNotice()) {
+					countDropped(1);
+					return false;
+				}
+				pendingEvents.pollFirst();
+			}
+			break;
+		case DISCONNECT:
+			countDropped(pendingEvents.size() + 1);
+			pendingEvents.clear();
+			queueDepth = 0;
+			disconnected = true;
+			return false;
+		}
+		countDropped(1);
+		return true;
+	}
+
+	private boolean removeOldestSystemNotice() {
+		for (Iterator<ChatEvent> it = pendingEvents.iterator(); it.hasNext();) {
+			if (it.next().isSystemNotice()) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
 	}
 
-	public void newMessage(Chat chat, User user, String message) {
-		executor.submit(() -> handledUser.newMessage(chat, user, message));
+	private void disconnectHandledUser() {
+		log.info("Outbound queue overflowed, disconnecting user={} dropped={}", handledUser.getName(),
+				droppedEvents.get());
+		if (handledUser instanceof ChatEventReceiver) {
+			((ChatEventReceiver) handledUser).disconnect();
+		}
+	}
+
+	private List<ChatEvent> pollBatch(int batchSize) {
+		synchronized (pendingEvents) {
+			int size = Math.min(batchSize, pendingEvents.size());
+			List<ChatEvent> batch = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				batch.add(pendingEvents.pollFirst());
+			}
+			queueDepth = pendingEvents.size();
+			return batch;
+		}
+	}
+
+	private void scheduleIfIdle() {
+		if (scheduled.compareAndSet(false, true)) {
+			scheduler.getExecutor().execute(drainTask);
+		}
 	}
 
-	public void newChat(Chat newChat) {
-		executor.submit(() -> handledUser.newChat(newChat));
+	// Only one batch at a time is in flight for this user, which keeps events
+	// in FIFO order. Receivers get the whole batch so they can write it at
+	// once, and may finish asynchronously; until they do, no worker is held.
+	// After a batch the worker is given back so that a user with a long
+	// backlog cannot starve the others.
+	private void deliverBatch() {
+		List<ChatEvent> batch = pollBatch(scheduler.getBatchSize());
+		recordDelivery(batch);
+		if (batch.isEmpty()) {
+			batchCompleted();
+		} else if (handledUser instanceof ChatEventReceiver) {
+			try {
+				((ChatEventReceiver) handledUser).receive(batch, batchCallback);
+			} catch (RuntimeException e) {
+				batchFailed(e);
+			}
+		} else {
+			for (ChatEvent event : batch) {
+				try {
+					event.dispatchTo(handledUser);
+				} catch (RuntimeException e) {
+					log.warn("User callback failed user={} event={}", handledUser.getName(), event.getType(), e);
+				}
+			}
+			batchCompleted();
+		}
 	}
 
-	public void chatClosed(Chat removedChat) {
-		executor.submit(() -> handledUser.chatClosed(removedChat));
+	private void recordDelivery(List<ChatEvent> batch) {
+		long now = System.nanoTime();
+		for (ChatEvent event : batch) {
+			metrics.getDeliveryLag().record(now - event.getCreatedAt());
+			if (event.getTrace() != null) {
+				metrics.getTraceStage(MessageTrace.Stage.QUEUE).record(now - event.getCreatedAt());
+				if (tracedInFlight == null) {
+					tracedInFlight = new ArrayList<>(1);
+				}
+				tracedInFlight.add(event);
+			}
+		}
+		inFlightSince = now;
+		metrics.getEventsDelivered().add(batch.size());
+	}
+
+	private void batchCompleted() {
+		if (tracedInFlight != null) {
+			recordSent(tracedInFlight);
+			tracedInFlight = null;
+		}
+		scheduled.set(false);
+		if (queueDepth > 0 && !disconnected) {
+			scheduleIfIdle();
+		}
+	}
+
+	private void recordSent(List<ChatEvent> traced) {
+		long now = System.nanoTime();
+		for (ChatEvent event : traced) {
+			metrics.getTraceStage(MessageTrace.Stage.SEND).record(now - inFlightSince);
+			metrics.getTraceStage(MessageTrace.Stage.TOTAL).record(now - event.getTrace().getReceivedAt());
+		}
+	}
+
+	private void batchFailed(Throwable cause) {
+		tracedInFlight = null;
+		log.debug("Delivery failed, dropping queued events user={} depth={}", handledUser.getName(), queueDepth);
+		synchronized (pendingEvents) {
+			countDropped(pendingEvents.size());
+			pendingEvents.clear();
+			queueDepth = 0;
+			disconnected = true;
+		}
+		scheduled.set(false);
 	}
 
 }
@@ -0,0 +1,46 @@
+package es.codeurjc.webchat;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.function.IntSupplier;
+
+/**
+ * Live, read-only view of the users behind a collection of handlers. Nothing
+ * is copied: iteration walks the backing collection, weakly consistent like
+ * the concurrent collections it is built on, and the size comes from a
+ * counter kept by the owner.
+ */
+class UsersView extends AbstractCollection<User> {
+
+	private final Collection<UserCallbackHandler> handlers;
+
+	private final IntSupplier size;
+
+	UsersView(Collection<UserCallbackHandler> handlers, IntSupplier size) {
+		this.handlers = handlers;
+		this.size = size;
+	}
+
+	@Override
+	public Iterator<User> iterator() {
+		Iterator<UserCallbackHandler> iterator = handlers.iterator();
+		return new Iterator<User>() {
+
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public User next() {
+				return iterator.next().getHandledUser();
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		return size.getAsInt();
+	}
+}
@@ -1,25 +1,169 @@
 package es.codeurjc.webchat;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+public class WebSocketUser implements User, ChatEventReceiver {
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+	private static final Logger log = LoggerFactory.getLogger(WebSocketUser.class);
 
-public class WebSocketUser implements User {
+	public static final long DEFAULT_SEND_TIMEOUT_MILLIS = 10000;
 
-	private static ObjectMapper mapper = new ObjectMapper();
+	private static final SecureRandom random = new SecureRandom();
 
 	private WebSocketSession session;
 	private String name;
 	private String color;
 
+	private RemoteEndpoint.Async asyncRemote;
+
+	private ChatMetrics metrics;
+
+	// Writes waiting for the one in progress, as the container allows only
+	// one at a time on a session. Guarded by itself, like the fields below.
+	private final Deque<PendingWrite> pendingWrites = new ArrayDeque<>();
+	private boolean writing;
+
+	// The write in progress and the frame of it the container is sending
+	private PendingWrite currentWrite;
+	private int frameIndex;
+	private boolean awaitingSend;
+
+	// Whether a thread is running sendFrames, which then goes on with the
+	// next frame when the container completes a send before returning
+	private boolean sendingFrames;
+
+	// Kept private so that only the container can tell a frame was sent
+	private final SendHandler frameSentHandler = this::frameSent;
+
+	private static final class PendingWrite {
+
+		private final List<WebSocketMessage<?>> frames;
+		private final DeliveryCallback callback;
+
+		private PendingWrite(List<WebSocketMessage<?>> frames, DeliveryCallback callback) {
+			this.frames = frames;
+			this.callback = callback;
+		}
+	}
+
+	// The definition last sent for each id, null unless the session speaks
+	// the binary subprotocol. Ids of different chats and of the lobby, or
+	// reused ones, are told apart by their entries. Only touched while
+	// sending, which never happens for two batches at once.
+	private Map<Integer, WireIds.Entry> definedIds;
+
+	// Shorter JSON frames are sent uncompressed, -1 unless the session speaks
+	// the deflate subprotocol
+	private volatile int deflateMinLength = -1;
+
+	// Only the client of this session is told it, so only it can take the
+	// place of this user back if the connection drops
+	private final String resumeToken;
+
 	public WebSocketUser(WebSocketSession session, String name, String color) {
+		this(session, name, color, DEFAULT_SEND_TIMEOUT_MILLIS, new ChatMetrics());
+	}
+
+	public WebSocketUser(WebSocketSession session, String name, String color, long sendTimeoutMillis) {
+		this(session, name, color, sendTimeoutMillis, new ChatMetrics());
+	}
+
+	public WebSocketUser(WebSocketSession session, String name, String color, long sendTimeoutMillis,
+			ChatMetrics metrics) {
 		this.session = session;
 		this.name = name;
 		this.color = color;
+		this.metrics = metrics;
+		this.asyncRemote = asyncRemoteOf(session, sendTimeoutMillis);
+		byte[] token = new byte[16];
+		random.nextBytes(token);
+		this.resumeToken = Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+		if (BinaryProtocol.SUBPROTOCOL.equals(session.getAcceptedProtocol())) {
+			this.definedIds = new HashMap<>();
+		} else if (DeflateProtocol.SUBPROTOCOL.equals(session.getAcceptedProtocol())) {
+			this.deflateMinLength = DeflateProtocol.DEFAULT_MIN_LENGTH;
+		}
+	}
+
+	/**
+	 * Sets the length from which JSON frames are compressed for a session
+	 * speaking the {@link DeflateProtocol}. Other sessions ignore it.
+	 */
+	public void setDeflateMinLength(int minLength) {
+		if (minLength < 0) {
+			throw new IllegalArgumentException("Minimum length cannot be negative: " + minLength);
+		}
+		if (deflateMinLength >= 0) {
+			deflateMinLength = minLength;
+		}
+	}
+
+	/**
+	 * Whether a reconnecting client presenting the given token is the one
+	 * this user was connected to.
+	 */
+	public boolean isResumableWith(String token) {
+		return token != null && MessageDigest.isEqual(resumeToken.getBytes(StandardCharsets.US_ASCII),
+				token.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Tells the client the token it has to present to take the place of this
+	 * user back, see isResumableWith.
+	 */
+	public void sendResumeToken() {
+		WebSocketMessage<?> frame;
+		if (definedIds != null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+			out.write(BinaryProtocol.SESSION);
+			BinaryProtocol.writeString(out, resumeToken);
+			frame = new BinaryMessage(out.toByteArray());
+		} else {
+			frame = new TextMessage("{\"type\":\"session\",\"resumeToken\":\"" + resumeToken + "\"}");
+		}
+		writeCountingFailures(Collections.singletonList(frame));
+	}
+
+	// Only JSR-356 containers expose an asynchronous endpoint. Batching is
+	// left off: flushing a batch blocks until the peer has taken it, which
+	// would hold a delivery worker for as long as a stalled peer does.
+	private static RemoteEndpoint.Async asyncRemoteOf(WebSocketSession session, long sendTimeoutMillis) {
+		if (!(session instanceof NativeWebSocketSession)) {
+			return null;
+		}
+		Session nativeSession = ((NativeWebSocketSession) session).getNativeSession(Session.class);
+		if (nativeSession == null) {
+			return null;
+		}
+		RemoteEndpoint.Async remote = nativeSession.getAsyncRemote();
+		remote.setSendTimeout(sendTimeoutMillis);
+		return remote;
 	}
 
 	@Override
@@ -33,58 +177,250 @@ public class WebSocketUser implements User {
 	}
 
 	@Override
-	public void newChat(Chat chat) {
+	public void receive(List<ChatEvent> events, DeliveryCallback callback) {
+		long startedAt = System.nanoTime();
+		DeliveryCallback timedCallback = new DeliveryCallback() {
+
+			@Override
+			public void completed() {
+				metrics.getSendLatency().recordSince(startedAt);
+				callback.completed();
+			}
+
+			@Override
+			public void failed(Throwable cause) {
+				metrics.getSendFailures().increment();
+				callback.failed(cause);
+			}
+		};
+		List<WebSocketMessage<?>> frames;
+		try {
+			frames = framesOf(events);
+		} catch (RuntimeException e) {
+			sendFailed(e, timedCallback);
+			return;
+		}
+		write(frames, timedCallback);
+	}
+
+	// Every write goes through the same remote, the asynchronous one when the
+	// container has it, one after the other
+	private void write(List<WebSocketMessage<?>> frames, DeliveryCallback callback) {
+		if (asyncRemote == null) {
+			try {
+				synchronized (pendingWrites) {
+					for (WebSocketMessage<?> frame : frames) {
+						session.sendMessage(frame);
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				writeFailed(e, callback);
+				return;
+			}
+			callback.completed();
+			return;
+		}
+		synchronized (pendingWrites) {
+			pendingWrites.addLast(new PendingWrite(frames, callback));
+			if (writing) {
+				return;
+			}
+			writing = true;
+			sendingFrames = true;
+		}
+		sendFrames();
+	}
 
-		ObjectNode msg = mapper.createObjectNode();
-		msg.put("type", "system");
-		msg.put("message", "New chat '" + chat.getName() + "'");
+	// Binary frames are preceded by the definitions of the ids in them that
+	// this session has not been sent yet. The encoded frames are shared by
+	// every recipient, so each gets its own view of the bytes.
+	private List<WebSocketMessage<?>> framesOf(List<ChatEvent> events) {
+		List<WebSocketMessage<?>> frames = new ArrayList<>(events.size());
+		int minLength = deflateMinLength;
+		for (ChatEvent event : events) {
+			if (definedIds == null) {
+				TextMessage text = event.toTextMessage();
+				if (minLength >= 0 && text.getPayload().length() >= minLength) {
+					frames.add(new BinaryMessage(event.toDeflatedFrame().duplicate()));
+				} else {
+					frames.add(text);
+				}
+				continue;
+			}
+			ChatEvent.BinaryFrame binaryFrame = event.toBinaryFrame();
+			synchronized (definedIds) {
+				for (WireIds.Entry reference : binaryFrame.getReferences()) {
+					if (definedIds.put(reference.getId(), reference) != reference) {
+						frames.add(new BinaryMessage(reference.getDefinition().duplicate()));
+					}
+				}
+			}
+			frames.add(new BinaryMessage(binaryFrame.getFrame().duplicate()));
+		}
+		return frames;
+	}
 
-		send(msg);
+	// Each frame is handed over when the previous one has been sent, as the
+	// container only allows one outstanding asynchronous message, and the
+	// thread is given back meanwhile. Sends the container completes before
+	// returning are carried on by this loop rather than by the handler, so
+	// the stack does not grow with the frames.
+	private void sendFrames() {
+		while (true) {
+			DeliveryCallback completed = null;
+			WebSocketMessage<?> frame = null;
+			PendingWrite sending;
+			synchronized (pendingWrites) {
+				if (currentWrite == null) {
+					currentWrite = pendingWrites.pollFirst();
+					frameIndex = 0;
+					if (currentWrite == null) {
+						writing = false;
+						sendingFrames = false;
+						return;
+					}
+				}
+				if (frameIndex == currentWrite.frames.size()) {
+					completed = currentWrite.callback;
+					currentWrite = null;
+				} else {
+					frame = currentWrite.frames.get(frameIndex);
+					awaitingSend = true;
+				}
+				sending = currentWrite;
+			}
+			if (completed != null) {
+				completed.completed();
+				continue;
+			}
+			try {
+				if (frame instanceof TextMessage) {
+					asyncRemote.sendText(((TextMessage) frame).getPayload(), frameSentHandler);
+				} else {
+					asyncRemote.sendBinary(((BinaryMessage) frame).getPayload(), frameSentHandler);
+				}
+			} catch (RuntimeException e) {
+				currentWriteFailed(e);
+				return;
+			}
+			synchronized (pendingWrites) {
+				if (currentWrite != sending) {
+					// It failed, and whatever comes next is not for this loop
+					return;
+				}
+				if (awaitingSend) {
+					// The handler carries on once the container is done
+					sendingFrames = false;
+					return;
+				}
+			}
+		}
+	}
+
+	private void frameSent(SendResult result) {
+		if (!result.isOK()) {
+			currentWriteFailed(result.getException());
+			return;
+		}
+		boolean resume;
+		synchronized (pendingWrites) {
+			frameIndex++;
+			awaitingSend = false;
+			resume = !sendingFrames;
+			sendingFrames = true;
+		}
+		if (resume) {
+			sendFrames();
+		}
+	}
+
+	private void currentWriteFailed(Throwable cause) {
+		DeliveryCallback callback;
+		synchronized (pendingWrites) {
+			callback = currentWrite.callback;
+			currentWrite = null;
+			awaitingSend = false;
+			sendingFrames = false;
+		}
+		writeFailed(cause, callback);
+	}
+
+	// The session is closed, so the writes waiting for this one fail as well
+	private void writeFailed(Throwable cause, DeliveryCallback callback) {
+		List<PendingWrite> abandoned;
+		synchronized (pendingWrites) {
+			abandoned = new ArrayList<>(pendingWrites);
+			pendingWrites.clear();
+			writing = false;
+		}
+		sendFailed(cause, callback);
+		for (PendingWrite write : abandoned) {
+			write.callback.failed(cause);
+		}
+	}
+
+	private void sendFailed(Throwable cause, DeliveryCallback callback) {
+		log.warn("Send failed, closing session user={} session={}", name, session.getId(), cause);
+		callback.failed(cause);
+		close(CloseStatus.SESSION_NOT_RELIABLE);
 	}
 
 	@Override
-	public void chatClosed(Chat chat) {
-		ObjectNode msg = mapper.createObjectNode();
-		msg.put("type", "system");
-		msg.put("message", "Chat '" + chat.getName() + "' closed");
+	public void disconnect() {
+		log.info("Disconnecting slow consumer user={} session={}", name, session.getId());
+		close(CloseStatus.POLICY_VIOLATION.withReason("Too slow consuming messages"));
+	}
 
-		send(msg);
+	private void close(CloseStatus status) {
+		try {
+			session.close(status);
+		} catch (IOException e) {
+			log.debug("Failed to close session user={} session={}", name, session.getId(), e);
+		}
 	}
 
 	@Override
-	public void newUserInChat(Chat chat, User user) {
-		ObjectNode msg = mapper.createObjectNode();
-		msg.put("type", "system");
-		msg.put("message", "New user '" + user.getName() + "' in chat '" + chat.getName() + "'");
+	public void newChat(Chat chat) {
+		send(ChatEvent.newChat(chat));
+	}
 
-		send(msg);
+	@Override
+	public void chatClosed(Chat chat) {
+		send(ChatEvent.chatClosed(chat));
 	}
 
 	@Override
-	public void userExitedFromChat(Chat chat, User user) {
-		ObjectNode msg = mapper.createObjectNode();
-		msg.put("type", "system");
-		msg.put("message", "User '" + user.getName() + "' exited from chat '" + chat.getName() + "'");
+	public void newUserInChat(Chat chat, User user) {
+		send(ChatEvent.newUserInChat(chat, user));
+	}
 
-		send(msg);
+	@Override
+	public void userExitedFromChat(Chat chat, User user) {
+		send(ChatEvent.userExitedFromChat(chat, user));
 	}
 
 	@Override
 	public void newMessage(Chat chat, User user, String message) {
-		ObjectNode msg = mapper.createObjectNode();
-		msg.put("name", user.getName());
-		msg.put("color", user.getColor());
-		msg.put("message", message);
+		send(ChatEvent.newMessage(chat, user, message));
+	}
 
-		send(msg);
+	// Written like any batch, so it never overlaps with one in progress
+	private void send(ChatEvent event) {
+		writeCountingFailures(framesOf(Collections.singletonList(event)));
 	}
 
-	private void send(ObjectNode msg) {
-		try {
-			session.sendMessage(new TextMessage(msg.toString()));
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+	private void writeCountingFailures(List<WebSocketMessage<?>> frames) {
+		write(frames, new DeliveryCallback() {
+
+			@Override
+			public void completed() {
+			}
+
+			@Override
+			public void failed(Throwable cause) {
+				metrics.getSendFailures().increment();
+			}
+		});
 	}
 
 }
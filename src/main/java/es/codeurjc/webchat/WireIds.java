@@ -0,0 +1,85 @@
+package es.codeurjc.webchat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Ids standing for the names and colors sent in binary frames. Each chat has
+ * its own, and its chat manager one more for the lobby, so an event is
+ * encoded once for all its recipients, and only the definitions a
+ * connection has not been sent yet go to it. Once there are as many as the
+ * capacity, the string used least recently gives its id up to the new one;
+ * connections are then sent the new definition before the next frame using
+ * it.
+ */
+class WireIds {
+
+	static final int DEFAULT_CAPACITY = 1024;
+
+	/** The most ids a frame refers to, which all have to be held at once */
+	static final int MIN_CAPACITY = 2;
+
+	static final class Entry {
+
+		private final int id;
+		private final ByteBuffer definition;
+
+		private Entry(int id, String value) {
+			this.id = id;
+			ByteArrayOutputStream out = new ByteArrayOutputStream(value.length() + 8);
+			out.write(BinaryProtocol.DEFINE);
+			BinaryProtocol.writeVarint(out, id);
+			BinaryProtocol.writeString(out, value);
+			this.definition = ByteBuffer.wrap(out.toByteArray()).asReadOnlyBuffer();
+		}
+
+		int getId() {
+			return id;
+		}
+
+		/**
+		 * The DEFINE frame of the id. Shared, so it has to be duplicated
+		 * before it is written.
+		 */
+		ByteBuffer getDefinition() {
+			return definition;
+		}
+	}
+
+	// In access order, so the eldest is the one used least recently
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final int capacity;
+
+	WireIds(int capacity) {
+		if (capacity < MIN_CAPACITY) {
+			throw new IllegalArgumentException("Wire id capacity must be at least " + MIN_CAPACITY);
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the id of the string, giving it one, if need be that of the
+	 * string used least recently. The references of a frame are taken while
+	 * holding the lock of this object, so that they never share an id.
+	 */
+	synchronized Entry entryOf(String value) {
+		Entry entry = entries.get(value);
+		if (entry != null) {
+			return entry;
+		}
+		int id;
+		if (entries.size() < capacity) {
+			id = entries.size() + 1;
+		} else {
+			Iterator<Entry> eldest = entries.values().iterator();
+			id = eldest.next().getId();
+			eldest.remove();
+		}
+		entry = new Entry(id, value);
+		entries.put(value, entry);
+		return entry;
+	}
+}
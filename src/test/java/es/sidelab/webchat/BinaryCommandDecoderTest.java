@@ -0,0 +1,98 @@
+package es.sidelab.webchat;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import es.codeurjc.webchat.BinaryCommandDecoder;
+import es.codeurjc.webchat.BinaryProtocol;
+import es.codeurjc.webchat.ClientCommand;
+import es.codeurjc.webchat.InvalidCommandException;
+
+public class BinaryCommandDecoderTest {
+
+	private BinaryCommandDecoder decoder = new BinaryCommandDecoder(64);
+
+	// Strings and numbers below 128 take a single length or value byte
+	private static ByteBuffer frame(int type, Object... fields) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(type);
+		for (Object field : fields) {
+			if (field instanceof String) {
+				byte[] bytes = ((String) field).getBytes(StandardCharsets.UTF_8);
+				out.write(bytes.length);
+				out.write(bytes, 0, bytes.length);
+			} else {
+				out.write((Integer) field);
+			}
+		}
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+
+	@Test
+	public void whenDecodingJoinFrame_thenJoinCommandReturned() throws InvalidCommandException {
+		ClientCommand command = decoder.decode(frame(BinaryProtocol.JOIN, "chat", "user", 0));
+
+		assertThat(command.getType(), is(ClientCommand.Type.JOIN));
+		assertThat(((ClientCommand.Join) command).getChat(), is(equalTo("chat")));
+		assertThat(((ClientCommand.Join) command).getUser(), is(equalTo("user")));
+		assertThat(((ClientCommand.Join) command).isLobby(), is(false));
+		assertThat(((ClientCommand.Join) command).getLastSequence(), is(nullValue()));
+	}
+
+	@Test
+	public void whenDecodingJoinFrameWithFlags_thenJoinCommandSubscribesAndCarriesLastSequence()
+			throws InvalidCommandException {
+		ClientCommand command = decoder.decode(frame(BinaryProtocol.JOIN, "chat", "user",
+				BinaryProtocol.JOIN_LOBBY | BinaryProtocol.JOIN_LAST_SEQUENCE, 41));
+
+		assertThat(((ClientCommand.Join) command).isLobby(), is(true));
+		assertThat(((ClientCommand.Join) command).getLastSequence(), is(41L));
+	}
+
+	@Test
+	public void whenDecodingJoinFrameWithResumeToken_thenJoinCommandCarriesIt() throws InvalidCommandException {
+		ClientCommand command = decoder.decode(frame(BinaryProtocol.JOIN, "chat", "user",
+				BinaryProtocol.JOIN_LAST_SEQUENCE | BinaryProtocol.JOIN_RESUME_TOKEN, 41, "token"));
+
+		assertThat(((ClientCommand.Join) command).getLastSequence(), is(41L));
+		assertThat(((ClientCommand.Join) command).getResumeToken(), is("token"));
+	}
+
+	@Test
+	public void whenDecodingSendFrame_thenMessageCommandReturned() throws InvalidCommandException {
+		ClientCommand command = decoder.decode(frame(BinaryProtocol.SEND, "héllo"));
+
+		assertThat(command.getType(), is(ClientCommand.Type.MESSAGE));
+		assertThat(((ClientCommand.Message) command).getMessage(), is(equalTo("héllo")));
+	}
+
+	@Test(expected = InvalidCommandException.class)
+	public void whenDecodingTruncatedFrame_thenItIsRejected() throws InvalidCommandException {
+		ByteBuffer frame = frame(BinaryProtocol.SEND, "hello");
+		frame.limit(frame.limit() - 1);
+		decoder.decode(frame);
+	}
+
+	@Test(expected = InvalidCommandException.class)
+	public void whenDecodingFrameWithTrailingBytes_thenItIsRejected() throws InvalidCommandException {
+		decoder.decode(frame(BinaryProtocol.SEND, "hello", 0));
+	}
+
+	@Test(expected = InvalidCommandException.class)
+	public void whenDecodingFrameOfUnknownType_thenItIsRejected() throws InvalidCommandException {
+		decoder.decode(frame(99, "hello"));
+	}
+
+	@Test(expected = InvalidCommandException.class)
+	public void whenDecodingOversizedFrame_thenItIsRejected() throws InvalidCommandException {
+		decoder.decode(frame(BinaryProtocol.SEND, new String(new char[70]).replace('\0', 'x')));
+	}
+}
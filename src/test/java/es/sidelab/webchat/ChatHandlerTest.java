@@ -0,0 +1,146 @@
+package es.sidelab.webchat;
+
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatHandler;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ClientCommandDecoder;
+import es.codeurjc.webchat.DeliveryScheduler;
+import es.codeurjc.webchat.PayloadSampler;
+import es.codeurjc.webchat.User;
+
+public class ChatHandlerTest {
+
+	private static final Pattern RESUME_TOKEN = Pattern.compile("\"resumeToken\":\"([^\"]+)\"");
+
+	private DeliveryScheduler scheduler = new DeliveryScheduler(2);
+
+	private ChatManager manager = new ChatManager(10, scheduler);
+
+	private ChatHandler handler = new ChatHandler(manager, new PayloadSampler(0), new ClientCommandDecoder());
+
+	@Before
+	public void keepDroppedUsers() {
+		manager.setDetachedUserGracePeriod(5, TimeUnit.SECONDS);
+	}
+
+	@After
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	private static WebSocketSession openSession(String id) {
+		WebSocketSession session = mock(WebSocketSession.class);
+		when(session.getId()).thenReturn(id);
+		when(session.getAttributes()).thenReturn(new HashMap<>());
+		when(session.isOpen()).thenReturn(true);
+		return session;
+	}
+
+	// WebSocketMessage is generic, so a captor of it can only be made by a cast
+	@SuppressWarnings("unchecked")
+	private static ArgumentCaptor<WebSocketMessage<?>> framesCaptor() {
+		return (ArgumentCaptor<WebSocketMessage<?>>) (ArgumentCaptor<?>) ArgumentCaptor.forClass(WebSocketMessage.class);
+	}
+
+	private static String resumeTokenSentTo(WebSocketSession session) throws Exception {
+		ArgumentCaptor<WebSocketMessage<?>> frames = framesCaptor();
+		verify(session, timeout(1000).atLeastOnce()).sendMessage(frames.capture());
+		for (WebSocketMessage<?> frame : frames.getAllValues()) {
+			Matcher matcher = RESUME_TOKEN.matcher(frame.getPayload().toString());
+			if (matcher.find()) {
+				return matcher.group(1);
+			}
+		}
+		throw new AssertionError("No resume token was sent");
+	}
+
+	private Chat joinAndDrop(WebSocketSession session, String userName) throws Exception {
+		handler.handleMessage(session, new TextMessage("{\"chat\":\"chat\",\"user\":\"" + userName + "\"}"));
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (manager.getChat("chat") == null && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		Chat chat = manager.getChat("chat");
+		while (chat.getUser(userName) == null && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		handler.afterConnectionClosed(session, CloseStatus.GOING_AWAY);
+		return chat;
+	}
+
+	@Test
+	public void givenDroppedUser_whenSameNameJoinsWithoutItsToken_thenItIsRejectedAndThePlaceKept()
+			throws Exception {
+		WebSocketSession dropped = openSession("dropped");
+		Chat chat = joinAndDrop(dropped, "ana");
+		User droppedUser = chat.getUser("ana");
+
+		WebSocketSession impostor = openSession("impostor");
+		handler.handleMessage(impostor,
+				new TextMessage("{\"chat\":\"chat\",\"user\":\"ana\",\"lastSeq\":0,\"resumeToken\":\"guess\"}"));
+
+		verify(impostor).close(CloseStatus.POLICY_VIOLATION.withReason("User name already taken"));
+		assertSame(droppedUser, chat.getUser("ana"));
+		assertSame(droppedUser, manager.getUser("ana"));
+	}
+
+	@Test
+	public void givenDroppedUser_whenItsClientJoinsWithItsToken_thenItTakesItsPlaceBack() throws Exception {
+		WebSocketSession dropped = openSession("dropped");
+		Chat chat = joinAndDrop(dropped, "ana");
+		User droppedUser = chat.getUser("ana");
+		String token = resumeTokenSentTo(dropped);
+
+		WebSocketSession reconnected = openSession("reconnected");
+		handler.handleMessage(reconnected, new TextMessage(
+				"{\"chat\":\"chat\",\"user\":\"ana\",\"resumeToken\":\"" + token + "\"}"));
+
+		verify(reconnected, never()).close(any(CloseStatus.class));
+		User resumed = chat.getUser("ana");
+		assertNotSame(droppedUser, resumed);
+		assertSame(resumed, reconnected.getAttributes().get("user"));
+		assertSame(chat, reconnected.getAttributes().get("chat"));
+		// The new connection gets a token of its own for the next time
+		assertNotEquals(token, resumeTokenSentTo(reconnected));
+	}
+
+	@Test
+	public void givenJoinedSession_whenItJoinsAgain_thenItIsRejectedAndTheFirstUserKept() throws Exception {
+		WebSocketSession session = openSession("session");
+		handler.handleMessage(session, new TextMessage("{\"chat\":\"chat\",\"user\":\"ana\"}"));
+		User first = (User) session.getAttributes().get("user");
+
+		handler.handleMessage(session, new TextMessage("{\"chat\":\"other\",\"user\":\"bob\"}"));
+
+		verify(session).close(CloseStatus.POLICY_VIOLATION.withReason("Already joined"));
+		assertSame(first, session.getAttributes().get("user"));
+		assertSame(first, manager.getUser("ana"));
+		assertNull(manager.getUser("bob"));
+		assertNull(manager.getChat("other"));
+	}
+}
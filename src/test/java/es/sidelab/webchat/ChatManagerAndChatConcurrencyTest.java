@@ -1,18 +1,28 @@
 package es.sidelab.webchat;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.after;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -60,7 +70,7 @@ public class ChatManagerAndChatConcurrencyTest {
 				throw e.getCause();
 			}
 		}
-		verify(spyUser, times(1)).chatClosed(chat);
+		verify(spyUser, after(500).times(1)).chatClosed(chat);
 		verify(spyUser, times(1)).chatClosed(any());
 	}
 
@@ -88,7 +98,162 @@ public class ChatManagerAndChatConcurrencyTest {
 			}
 		}
 
-		verify(spyUser, times(numberOfChats)).newChat(any());
+		verify(spyUser, timeout(1000).times(numberOfChats)).newChat(any());
+	}
+
+	@Test
+	public void givenManagerWithCapacityForOneChat_whenManyUsersJoinItConcurrently_thenCapacityIsChargedOnce()
+			throws Throwable {
+		int numberOfJoins = 100;
+
+		ChatManager manager = new ChatManager(1);
+		Chat chat = manager.newChat("the only chat", 1, TimeUnit.SECONDS);
+
+		ExecutorService executor = Executors.newFixedThreadPool(10);
+		CompletionService<Chat> completionService = new ExecutorCompletionService<>(executor);
+
+		for (int i = 0; i < numberOfJoins; i++) {
+			completionService.submit(() -> manager.newChat("the only chat", 100, TimeUnit.MILLISECONDS));
+		}
+
+		for (int i = 0; i < numberOfJoins; i++) {
+			try {
+				assertSame(chat, completionService.take().get());
+			} catch (ExecutionException e) {
+				throw e.getCause();
+			}
+		}
+
+		// The capacity taken by the chat comes back once it is closed
+		manager.closeChat(chat);
+		manager.newChat("another chat", 100, TimeUnit.MILLISECONDS);
+
+		executor.shutdown();
+	}
+
+	@Test
+	public void givenManagerWithMChats_whenMoreDistinctChatsCreatedConcurrently_thenOnlyMAreCreated()
+			throws Throwable {
+		int maxChats = 5;
+		int numberOfCreations = 20;
+
+		ChatManager manager = new ChatManager(maxChats);
+		AtomicInteger timeouts = new AtomicInteger();
+
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfCreations);
+		CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+
+		for (int i = 0; i < numberOfCreations; i++) {
+			String chatName = "chat " + i;
+			completionService.submit(() -> {
+				try {
+					manager.newChat(chatName, 200, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					timeouts.incrementAndGet();
+				}
+				return null;
+			});
+		}
+
+		for (int i = 0; i < numberOfCreations; i++) {
+			try {
+				completionService.take().get();
+			} catch (ExecutionException e) {
+				throw e.getCause();
+			}
+		}
+
+		assertEquals(maxChats, manager.getChats().size());
+		assertEquals(numberOfCreations - maxChats, timeouts.get());
+
+		executor.shutdown();
+	}
+
+	@Test
+	public void givenManyThreadsCreatingTheSameChats_whenTheyFinish_thenEachNameHasOneChatAndOneNotice()
+			throws Throwable {
+		int numberOfThreads = 10;
+		int numberOfChats = 200;
+
+		ChatManager manager = new ChatManager(numberOfChats);
+		User lobbyUser = mock(User.class);
+		when(lobbyUser.getName()).thenReturn("Lobby");
+		manager.newUser(lobbyUser);
+		ConcurrentMap<String, Chat> created = new ConcurrentHashMap<>();
+
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+
+		for (int t = 0; t < numberOfThreads; t++) {
+			completionService.submit(() -> {
+				for (int i = 0; i < numberOfChats; i++) {
+					Chat chat = manager.newChat("chat " + i, 5, TimeUnit.SECONDS);
+					Chat first = created.putIfAbsent(chat.getName(), chat);
+					assertSame(first == null ? chat : first, chat);
+				}
+				return null;
+			});
+		}
+
+		for (int t = 0; t < numberOfThreads; t++) {
+			try {
+				completionService.take().get();
+			} catch (ExecutionException e) {
+				throw e.getCause();
+			}
+		}
+
+		assertEquals(numberOfChats, manager.getChats().size());
+		for (Chat chat : manager.getChats()) {
+			assertSame(created.get(chat.getName()), chat);
+		}
+		verify(lobbyUser, timeout(1000).times(numberOfChats)).newChat(any());
+
+		executor.shutdown();
+		manager.close();
+	}
+
+	@Test
+	public void givenUserRemovedWhileJoining_whenANewUserWithItsNameJoinsAndLeaves_thenTheChatEndsEmpty()
+			throws Throwable {
+		int iterations = 200;
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		for (int i = 0; i < iterations; i++) {
+			Chat chat = manager.newChat("chat " + i, 5, TimeUnit.SECONDS);
+			User removed = mock(User.class);
+			when(removed.getName()).thenReturn("Ana");
+			manager.newUser(removed);
+
+			Future<?> join = executor.submit(() -> {
+				try {
+					chat.addUser(removed);
+				} catch (IllegalArgumentException e) {
+					// The removal came first
+				}
+			});
+			Future<?> removal = executor.submit(() -> manager.removeUser(removed));
+			join.get();
+			removal.get();
+
+			User joined = mock(User.class);
+			when(joined.getName()).thenReturn("Ana");
+			manager.newUser(joined);
+			chat.addUser(joined);
+			assertEquals(1, chat.getUserCount());
+			assertSame(joined, chat.getUser("Ana"));
+
+			chat.sendMessage(joined, "hello");
+			verify(joined, timeout(1000)).newMessage(chat, joined, "hello");
+			verify(removed, never()).newMessage(any(), any(), any());
+
+			manager.removeUser(joined);
+			assertEquals(0, chat.getUserCount());
+			manager.closeChat(chat);
+		}
+
+		executor.shutdown();
 	}
 
 	private Void registerUserinMChats(String userName, int m) throws InterruptedException, TimeoutException {
@@ -0,0 +1,103 @@
+package es.sidelab.webchat;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.ChatMetrics;
+import es.codeurjc.webchat.DeliveryScheduler;
+import es.codeurjc.webchat.MessageTrace;
+import es.codeurjc.webchat.User;
+
+public class ChatMetricsTest {
+
+	private DeliveryScheduler scheduler = new DeliveryScheduler(2);
+	private ChatManager manager = new ChatManager(5, scheduler);
+
+	@After
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	private void awaitDelivered(ChatMetrics metrics, long events) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (metrics.getEventsDelivered().sum() < events && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void givenChatWithUsers_whenMessageSent_thenMetricsCountIt() throws Throwable {
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+		User sender = new TestUser("sender");
+		User receiver = new TestUser("receiver");
+		manager.newUser(sender, false);
+		manager.newUser(receiver, false);
+		chat.addUser(sender);
+		chat.addUser(receiver);
+		ChatMetrics metrics = manager.getMetrics();
+		// The sender hears about the receiver joining
+		awaitDelivered(metrics, 1);
+
+		chat.sendMessage(sender, "hello");
+		awaitDelivered(metrics, 3);
+
+		assertEquals(1, metrics.getMessagesReceived().sum());
+		assertEquals(3, metrics.getEventsDelivered().sum());
+		assertEquals(3, metrics.getDeliveryLag().getCount());
+		assertEquals(1, metrics.getCapacityWait().getCount());
+	}
+
+	@Test
+	public void givenTracedMessage_whenDelivered_thenEveryRecipientStageIsRecorded() throws Throwable {
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+		User sender = new TestUser("sender");
+		User receiver = new TestUser("receiver");
+		manager.newUser(sender, false);
+		manager.newUser(receiver, false);
+		chat.addUser(sender);
+		chat.addUser(receiver);
+		ChatMetrics metrics = manager.getMetrics();
+		awaitDelivered(metrics, 1);
+
+		chat.sendMessage(sender, "traced", new MessageTrace(System.nanoTime()));
+		chat.sendMessage(sender, "not traced");
+		awaitDelivered(metrics, 5);
+		// Writes complete after the events have been handed over
+		long deadline = System.currentTimeMillis() + 5000;
+		while (metrics.getTraceStage(MessageTrace.Stage.TOTAL).getCount() < 2
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(1, metrics.getTraceStage(MessageTrace.Stage.FAN_OUT).getCount());
+		assertEquals(2, metrics.getTraceStage(MessageTrace.Stage.QUEUE).getCount());
+		assertEquals(2, metrics.getTraceStage(MessageTrace.Stage.SEND).getCount());
+		assertEquals(2, metrics.getTraceStage(MessageTrace.Stage.TOTAL).getCount());
+		assertThat(metrics.scrape(), containsString("webchat_trace_stage_seconds_count{stage=\"total\"} 2\n"));
+	}
+
+	@Test
+	public void whenScraped_thenMetricsAreInPrometheusTextFormat() throws Throwable {
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+		User user = new TestUser("user");
+		manager.newUser(user);
+		chat.addUser(user);
+
+		String scrape = manager.getMetrics().scrape();
+
+		assertThat(scrape, containsString("# TYPE webchat_messages_received_total counter\n"));
+		assertThat(scrape, containsString("webchat_chats_active 1\n"));
+		assertThat(scrape, containsString("webchat_chats_max 5\n"));
+		assertThat(scrape, containsString("webchat_users_registered 1\n"));
+		assertThat(scrape, containsString("webchat_chat_members_max 1\n"));
+		assertThat(scrape, containsString("webchat_chat_capacity_wait_seconds_count 1\n"));
+	}
+}
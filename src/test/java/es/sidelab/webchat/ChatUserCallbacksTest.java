@@ -6,6 +6,7 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 
 import java.util.Arrays;
@@ -268,7 +269,7 @@ public class ChatUserCallbacksTest {
 		failIfCountDownLatchDoesntGetToZeroWithin(10, TimeUnit.SECONDS, countDownLatch);
 
 		Stream.of(spyUsers).forEach(spy -> {
-			verify(spy, times(1)).newUserInChat(aChat, newUser);
+			verify(spy, timeout(1000).times(1)).newUserInChat(aChat, newUser);
 		});
 
 		verify(newUser, never()).newUserInChat(any(), any());
@@ -0,0 +1,88 @@
+package es.sidelab.webchat;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import es.codeurjc.webchat.ClientCommand;
+import es.codeurjc.webchat.ClientCommandDecoder;
+import es.codeurjc.webchat.InvalidCommandException;
+
+public class ClientCommandDecoderTest {
+
+	private ClientCommandDecoder decoder = new ClientCommandDecoder(64);
+
+	@Test
+	public void whenDecodingJoinFrame_thenJoinCommandReturned() throws InvalidCommandException {
+		ClientCommand command = decoder.decode("{\"chat\":\"chat\",\"user\":\"user\"}");
+
+		assertThat(command.getType(), is(ClientCommand.Type.JOIN));
+		assertThat(((ClientCommand.Join) command).getChat(), is(equalTo("chat")));
+		assertThat(((ClientCommand.Join) command).getUser(), is(equalTo("user")));
+	}
+
+	@Test
+	public void whenDecodingJoinFrameWithLobby_thenJoinCommandSubscribesToLobby() throws InvalidCommandException {
+		ClientCommand command = decoder.decode("{\"chat\":\"chat\",\"user\":\"user\",\"lobby\":true}");
+
+		assertThat(((ClientCommand.Join) command).isLobby(), is(true));
+	}
+
+	@Test
+	public void whenDecodingJoinFrameWithoutLobby_thenJoinCommandSubscribesToLobby() throws InvalidCommandException {
+		ClientCommand command = decoder.decode("{\"chat\":\"chat\",\"user\":\"user\"}");
+
+		assertThat(((ClientCommand.Join) command).isLobby(), is(true));
+	}
+
+	@Test
+	public void whenDecodingJoinFrameOptingOutOfLobby_thenJoinCommandDoesNotSubscribe() throws InvalidCommandException {
+		ClientCommand command = decoder.decode("{\"chat\":\"chat\",\"user\":\"user\",\"lobby\":false}");
+
+		assertThat(((ClientCommand.Join) command).isLobby(), is(false));
+	}
+
+	@Test
+	public void whenDecodingJoinFrameWithLastSeq_thenJoinCommandCarriesIt() throws InvalidCommandException {
+		ClientCommand command = decoder.decode("{\"chat\":\"chat\",\"user\":\"user\",\"lastSeq\":41}");
+
+		assertThat(((ClientCommand.Join) command).getLastSequence(), is(41L));
+	}
+
+	@Test
+	public void whenDecodingJoinFrameWithResumeToken_thenJoinCommandCarriesIt() throws InvalidCommandException {
+		ClientCommand command = decoder.decode("{\"chat\":\"chat\",\"user\":\"user\",\"resumeToken\":\"abc\"}");
+
+		assertThat(((ClientCommand.Join) command).getResumeToken(), is("abc"));
+	}
+
+	@Test
+	public void whenDecodingMessageFrameWithUnknownFields_thenMessageCommandReturned() throws InvalidCommandException {
+		ClientCommand command = decoder.decode("{\"message\":\"hi\",\"user\":\"user\",\"extra\":{\"a\":[1,2]}}");
+
+		assertThat(command.getType(), is(ClientCommand.Type.MESSAGE));
+		assertThat(((ClientCommand.Message) command).getMessage(), is(equalTo("hi")));
+	}
+
+	@Test(expected = InvalidCommandException.class)
+	public void whenDecodingOversizedFrame_thenInvalidCommandExceptionThrown() throws InvalidCommandException {
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 64; i++) {
+			message.append('x');
+		}
+		decoder.decode("{\"message\":\"" + message + "\"}");
+	}
+
+	@Test(expected = InvalidCommandException.class)
+	public void whenDecodingMalformedFrame_thenInvalidCommandExceptionThrown() throws InvalidCommandException {
+		decoder.decode("{\"message\":\"unterminated");
+	}
+
+	@Test(expected = InvalidCommandException.class)
+	public void whenDecodingFrameWithoutKnownCommand_thenInvalidCommandExceptionThrown()
+			throws InvalidCommandException {
+		decoder.decode("{\"user\":\"user\"}");
+	}
+}
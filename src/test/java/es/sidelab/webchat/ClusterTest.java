@@ -0,0 +1,445 @@
+package es.sidelab.webchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import es.codeurjc.webchat.BusFrame;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DeliveryScheduler;
+import es.codeurjc.webchat.HashRing;
+import es.codeurjc.webchat.InProcessChatBus;
+import es.codeurjc.webchat.User;
+import es.codeurjc.webchat.WebSocketUser;
+
+public class ClusterTest {
+
+	// Counts the frames each node receives
+	private static class CountingBus extends InProcessChatBus {
+
+		private final Map<String, AtomicInteger> received = new ConcurrentHashMap<>();
+
+		@Override
+		public void connect(String nodeId, Listener listener) {
+			AtomicInteger count = received.computeIfAbsent(nodeId, id -> new AtomicInteger());
+			super.connect(nodeId, new Listener() {
+				@Override
+				public void received(List<BusFrame> frames) {
+					count.addAndGet(frames.size());
+					listener.received(frames);
+				}
+
+				@Override
+				public void nodesChanged(Set<String> nodeIds) {
+					listener.nodesChanged(nodeIds);
+				}
+			});
+		}
+
+		int getReceived(String nodeId) {
+			return received.get(nodeId).get();
+		}
+	}
+
+	// Records the messages it gets, in the order it gets them
+	private static class RecordingUser extends TestUser {
+
+		private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+
+		RecordingUser(String name) {
+			super(name);
+		}
+
+		@Override
+		public void newMessage(Chat chat, User user, String message) {
+			messages.add(message);
+		}
+
+		List<String> getMessages() {
+			synchronized (messages) {
+				return new ArrayList<>(messages);
+			}
+		}
+	}
+
+	private DeliveryScheduler scheduler = new DeliveryScheduler(2);
+
+	private CountingBus bus = new CountingBus();
+
+	private ChatManager nodeA = new ChatManager(10, scheduler);
+	private ChatManager nodeB = new ChatManager(10, scheduler);
+	private ChatManager nodeC = new ChatManager(10, scheduler);
+
+	@After
+	public void shutdown() {
+		nodeA.close();
+		nodeB.close();
+		nodeC.close();
+		bus.shutdown();
+		scheduler.shutdown();
+	}
+
+	private static ArgumentMatcher<User> named(String name) {
+		return new ArgumentMatcher<User>() {
+			@Override
+			public boolean matches(Object user) {
+				return user instanceof User && name.equals(((User) user).getName());
+			}
+		};
+	}
+
+	private void connectNodes() throws InterruptedException {
+		nodeA.setChatBus(bus, "a");
+		nodeB.setChatBus(bus, "b");
+		nodeC.setChatBus(bus, "c");
+		awaitClusterSize(3, nodeA, nodeB, nodeC);
+	}
+
+	private static void awaitClusterSize(int size, ChatManager... nodes) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		for (ChatManager node : nodes) {
+			while (node.getClusterNodes().size() != size) {
+				if (System.nanoTime() > deadline) {
+					fail("Nodes did not see each other");
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	// The first of chat0, chat1... that the given node owns
+	private String chatOwnedBy(String nodeId) {
+		for (int i = 0;; i++) {
+			if (nodeId.equals(nodeA.getOwner("chat" + i))) {
+				return "chat" + i;
+			}
+		}
+	}
+
+	@Test
+	public void givenChatOnTwoNodes_whenMessageSent_thenMembersOnBothGetItAndOtherNodesDoNot() throws Throwable {
+		connectNodes();
+		User author = spy(new TestUser("author"));
+		User remote = spy(new TestUser("remote"));
+		User elsewhere = spy(new TestUser("elsewhere"));
+		nodeA.newUser(author);
+		nodeB.newUser(remote);
+		nodeC.newUser(elsewhere);
+		String chatName = chatOwnedBy("a");
+		Chat chatOnA = nodeA.newChat(chatName, 5, TimeUnit.SECONDS);
+		Chat chatOnB = nodeB.newChat(chatName, 5, TimeUnit.SECONDS);
+		Chat otherOnC = nodeC.newChat(chatOwnedBy("c"), 5, TimeUnit.SECONDS);
+		chatOnA.addUser(author);
+		chatOnB.addUser(remote);
+		otherOnC.addUser(elsewhere);
+
+		chatOnA.sendMessage(author, "hello");
+
+		verify(author, timeout(1000)).newMessage(chatOnA, author, "hello");
+		verify(remote, timeout(1000)).newMessage(eq(chatOnB), argThat(named("author")), eq("hello"));
+		verify(elsewhere, after(300).never()).newMessage(any(Chat.class), any(User.class), anyString());
+		assertEquals(0, bus.getReceived("c"));
+	}
+
+	@Test
+	public void givenChatOnTwoNodes_whenUsersJoinAndLeave_thenMembersOnTheOtherNodeAreTold() throws Throwable {
+		connectNodes();
+		User member = spy(new TestUser("member"));
+		User visitor = new TestUser("visitor");
+		nodeA.newUser(member);
+		nodeB.newUser(visitor);
+		Chat chatOnA = nodeA.newChat("chat", 5, TimeUnit.SECONDS);
+		chatOnA.addUser(member);
+		Chat chatOnB = nodeB.newChat("chat", 5, TimeUnit.SECONDS);
+
+		chatOnB.addUser(visitor);
+		verify(member, timeout(1000)).newUserInChat(eq(chatOnA), argThat(named("visitor")));
+
+		chatOnB.removeUser(visitor);
+		verify(member, timeout(1000)).userExitedFromChat(eq(chatOnA), argThat(named("visitor")));
+	}
+
+	@Test
+	public void givenManyMembersOnANode_whenMessageSent_thenItCrossesTheBusOnceForThatNode() throws Throwable {
+		connectNodes();
+		User author = new TestUser("author");
+		nodeA.newUser(author);
+		String chatName = chatOwnedBy("a");
+		Chat chatOnA = nodeA.newChat(chatName, 5, TimeUnit.SECONDS);
+		chatOnA.addUser(author);
+		Chat chatOnB = nodeB.newChat(chatName, 5, TimeUnit.SECONDS);
+		User[] members = new User[5];
+		for (int i = 0; i < members.length; i++) {
+			members[i] = spy(new TestUser("member" + i));
+			nodeB.newUser(members[i]);
+			chatOnB.addUser(members[i]);
+		}
+		int receivedBefore = bus.getReceived("b");
+
+		chatOnA.sendMessage(author, "once");
+
+		for (User member : members) {
+			verify(member, timeout(1000)).newMessage(eq(chatOnB), argThat(named("author")), eq("once"));
+		}
+		assertEquals(receivedBefore + 1, bus.getReceived("b"));
+	}
+
+	@Test
+	public void givenMembersOnSeveralNodes_whenTheySendAtOnce_thenEveryoneGetsTheMessagesInTheSameOrder()
+			throws Throwable {
+		connectNodes();
+		String chatName = chatOwnedBy("c");
+		RecordingUser onA = new RecordingUser("onA");
+		RecordingUser onB = new RecordingUser("onB");
+		nodeA.newUser(onA);
+		nodeB.newUser(onB);
+		Chat chatOnA = nodeA.newChat(chatName, 5, TimeUnit.SECONDS);
+		Chat chatOnB = nodeB.newChat(chatName, 5, TimeUnit.SECONDS);
+		chatOnA.addUser(onA);
+		chatOnB.addUser(onB);
+
+		Thread sender = new Thread(() -> {
+			for (int i = 0; i < 50; i++) {
+				try {
+					chatOnB.sendMessage(onB, "b" + i);
+				} catch (Throwable e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		sender.start();
+		for (int i = 0; i < 50; i++) {
+			chatOnA.sendMessage(onA, "a" + i);
+		}
+		sender.join();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while ((onA.getMessages().size() < 100 || onB.getMessages().size() < 100) && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(100, onA.getMessages().size());
+		assertEquals(onA.getMessages(), onB.getMessages());
+		assertTrue(nodeC.getChat(chatName).isOwned());
+		assertFalse(chatOnA.isOwned());
+		assertFalse(chatOnB.isOwned());
+	}
+
+	@Test
+	public void givenOwnerFull_whenAnotherNodeCreatesAChatItOwns_thenItTimesOutWhileOwnChatsCanBeCreated()
+			throws Throwable {
+		ChatManager smallA = new ChatManager(1, scheduler);
+		ChatManager smallB = new ChatManager(1, scheduler);
+		try {
+			smallA.setChatBus(bus, "small-a");
+			smallB.setChatBus(bus, "small-b");
+			awaitClusterSize(2, smallA, smallB);
+			List<String> ownedByA = new ArrayList<>();
+			String ownedByB = null;
+			for (int i = 0; ownedByA.size() < 2 || ownedByB == null; i++) {
+				if ("small-a".equals(smallA.getOwner("chat" + i))) {
+					ownedByA.add("chat" + i);
+				} else if (ownedByB == null) {
+					ownedByB = "chat" + i;
+				}
+			}
+			smallA.newChat(ownedByA.get(0), 5, TimeUnit.SECONDS);
+
+			try {
+				smallB.newChat(ownedByA.get(1), 200, TimeUnit.MILLISECONDS);
+				fail("The owner had no capacity left");
+			} catch (TimeoutException e) {
+				// Expected
+			}
+			assertNull(smallB.getChat(ownedByA.get(1)));
+			assertTrue(smallB.newChat(ownedByB, 5, TimeUnit.SECONDS).isOwned());
+			assertNotNull(smallB.newChat(ownedByA.get(0), 5, TimeUnit.SECONDS));
+		} finally {
+			smallA.close();
+			smallB.close();
+		}
+	}
+
+	@Test
+	public void givenOwnerLeaves_whenMessageSent_thenTheNewOwnerNumbersItAndMembersStillGetIt() throws Throwable {
+		connectNodes();
+		String chatName = chatOwnedBy("c");
+		User onA = spy(new TestUser("onA"));
+		User onB = spy(new TestUser("onB"));
+		nodeA.newUser(onA);
+		nodeB.newUser(onB);
+		Chat chatOnA = nodeA.newChat(chatName, 5, TimeUnit.SECONDS);
+		Chat chatOnB = nodeB.newChat(chatName, 5, TimeUnit.SECONDS);
+		chatOnA.addUser(onA);
+		chatOnB.addUser(onB);
+		chatOnA.sendMessage(onA, "before");
+		verify(onB, timeout(1000)).newMessage(eq(chatOnB), argThat(named("onA")), eq("before"));
+
+		nodeC.close();
+		awaitClusterSize(2, nodeA, nodeB);
+		chatOnA.sendMessage(onA, "after");
+
+		verify(onA, timeout(1000)).newMessage(eq(chatOnA), any(User.class), eq("after"));
+		verify(onB, timeout(1000)).newMessage(eq(chatOnB), argThat(named("onA")), eq("after"));
+		assertNotEquals(chatOnA.isOwned(), chatOnB.isOwned());
+	}
+
+	@Test
+	public void givenNodeJoins_whenItTakesOverAChatItDidNotHold_thenJoiningUsersGetItsRecentMessages()
+			throws Throwable {
+		nodeA.setRecentMessages(10, 100);
+		nodeC.setRecentMessages(10, 100);
+		nodeA.setChatBus(bus, "a");
+		nodeB.setChatBus(bus, "b");
+		awaitClusterSize(2, nodeA, nodeB);
+		HashRing withC = new HashRing(Arrays.asList("a", "b", "c"));
+		String chatName = null;
+		for (int i = 0; chatName == null; i++) {
+			if ("a".equals(nodeA.getOwner("chat" + i)) && "c".equals(withC.ownerOf("chat" + i))) {
+				chatName = "chat" + i;
+			}
+		}
+		User onA = new TestUser("onA");
+		nodeA.newUser(onA);
+		Chat chatOnA = nodeA.newChat(chatName, 5, TimeUnit.SECONDS);
+		chatOnA.addUser(onA);
+		for (int i = 0; i < 3; i++) {
+			chatOnA.sendMessage(onA, "message " + i);
+		}
+
+		nodeC.setChatBus(bus, "c");
+		awaitClusterSize(3, nodeA, nodeB, nodeC);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (chatOnA.isOwned() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		RecordingUser onC = new RecordingUser("onC");
+		nodeC.newUser(onC);
+		Chat chatOnC = nodeC.newChat(chatName, 5, TimeUnit.SECONDS);
+		chatOnC.addUser(onC);
+
+		assertTrue(chatOnC.isOwned());
+		deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (onC.getMessages().size() < 3 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(Arrays.asList("message 0", "message 1", "message 2"), onC.getMessages());
+	}
+
+	@Test
+	public void givenBusShutDown_whenMessageSent_thenLocalMembersStillGetIt() throws Throwable {
+		connectNodes();
+		String chatName = chatOwnedBy("a");
+		User onA = spy(new TestUser("onA"));
+		nodeA.newUser(onA);
+		nodeB.newChat(chatName, 5, TimeUnit.SECONDS);
+		Chat chatOnA = nodeA.newChat(chatName, 5, TimeUnit.SECONDS);
+		chatOnA.addUser(onA);
+
+		bus.shutdown();
+		chatOnA.sendMessage(onA, "after shutdown");
+		chatOnA.sendMessage(onA, "and again");
+
+		verify(onA, timeout(1000)).newMessage(eq(chatOnA), any(User.class), eq("after shutdown"));
+		verify(onA, timeout(1000)).newMessage(eq(chatOnA), any(User.class), eq("and again"));
+	}
+
+	@Test
+	public void givenMembersOnlyOnAnotherNode_whenTtlExpires_thenTheOwnerKeepsTheChatUntilTheyLeave()
+			throws Throwable {
+		ChatManager owner = new ChatManager(10, scheduler, 200, TimeUnit.MILLISECONDS);
+		ChatManager other = new ChatManager(10, scheduler, 200, TimeUnit.MILLISECONDS);
+		try {
+			owner.setChatBus(bus, "owner");
+			other.setChatBus(bus, "other");
+			awaitClusterSize(2, owner, other);
+			String chatName = null;
+			for (int i = 0; chatName == null; i++) {
+				if ("owner".equals(owner.getOwner("chat" + i))) {
+					chatName = "chat" + i;
+				}
+			}
+			User onOther = new TestUser("onOther");
+			other.newUser(onOther);
+			Chat chatOnOther = other.newChat(chatName, 5, TimeUnit.SECONDS);
+			chatOnOther.addUser(onOther);
+
+			Thread.sleep(600);
+			assertNotNull(owner.getChat(chatName));
+
+			chatOnOther.removeUser(onOther);
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (owner.getChat(chatName) != null && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertNull(owner.getChat(chatName));
+		} finally {
+			owner.close();
+			other.close();
+		}
+	}
+
+	@Test
+	public void givenOwnerClosedAChatOpenElsewhere_whenMessageSent_thenItReopensItNumberingOn() throws Throwable {
+		connectNodes();
+		String chatName = chatOwnedBy("a");
+		WebSocketSession session = mock(WebSocketSession.class);
+		User onB = new WebSocketUser(session, "onB", "007AFF");
+		nodeB.newUser(onB);
+		Chat chatOnB = nodeB.newChat(chatName, 5, TimeUnit.SECONDS);
+		chatOnB.addUser(onB);
+		chatOnB.sendMessage(onB, "one");
+		chatOnB.sendMessage(onB, "two");
+		// Its own arrival, then the messages
+		verify(session, timeout(1000).times(3)).sendMessage(any(TextMessage.class));
+
+		nodeA.closeChat(nodeA.getChat(chatName));
+		chatOnB.sendMessage(onB, "three");
+
+		ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+		verify(session, timeout(1000).times(4)).sendMessage(frames.capture());
+		List<Long> sequences = new ArrayList<>();
+		Pattern seq = Pattern.compile("\"seq\":(\\d+)");
+		for (TextMessage frame : frames.getAllValues()) {
+			Matcher matcher = seq.matcher(frame.getPayload());
+			if (matcher.find()) {
+				sequences.add(Long.parseLong(matcher.group(1)));
+			}
+		}
+		assertEquals(Arrays.asList(0L, 1L, 2L), sequences);
+		assertTrue(nodeA.getChat(chatName).isOwned());
+	}
+}
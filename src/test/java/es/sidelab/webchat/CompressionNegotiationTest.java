@@ -0,0 +1,126 @@
+package es.sidelab.webchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.ContainerProvider;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.Extension;
+import javax.websocket.HandshakeResponse;
+import javax.websocket.Session;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import es.codeurjc.webchat.App;
+import es.codeurjc.webchat.DeflateProtocol;
+
+public class CompressionNegotiationTest {
+
+	private static final Extension PER_MESSAGE_DEFLATE = new Extension() {
+		@Override
+		public String getName() {
+			return "permessage-deflate";
+		}
+
+		@Override
+		public List<Parameter> getParameters() {
+			return Collections.emptyList();
+		}
+	};
+
+	private static ConfigurableApplicationContext compressing;
+
+	private static ConfigurableApplicationContext notCompressing;
+
+	@BeforeClass
+	public static void startServers() {
+		compressing = start(true);
+		notCompressing = start(false);
+	}
+
+	@AfterClass
+	public static void stopServers() {
+		if (compressing != null) {
+			compressing.close();
+		}
+		if (notCompressing != null) {
+			notCompressing.close();
+		}
+	}
+
+	// Ahead of application.properties, which would override default properties
+	private static ConfigurableApplicationContext start(boolean perMessageDeflate) {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("server.port", 0);
+		properties.put("webchat.history.dir", "");
+		properties.put("webchat.compression.per-message-deflate", perMessageDeflate);
+		return new SpringApplicationBuilder(App.class).initializers(context -> context.getEnvironment()
+				.getPropertySources().addFirst(new MapPropertySource("test", properties))).run();
+	}
+
+	// Returns the extensions header the server answered the handshake with,
+	// as the Tomcat client reports those it offered as negotiated anyway
+	private static List<String> negotiate(ConfigurableApplicationContext server, String... subprotocols)
+			throws Exception {
+		List<String> extensions = new ArrayList<>();
+		ClientEndpointConfig config = ClientEndpointConfig.Builder.create()
+				.extensions(Collections.singletonList(PER_MESSAGE_DEFLATE))
+				.preferredSubprotocols(Arrays.asList(subprotocols))
+				.configurator(new ClientEndpointConfig.Configurator() {
+					@Override
+					public void afterResponse(HandshakeResponse response) {
+						response.getHeaders().forEach((name, values) -> {
+							if ("Sec-WebSocket-Extensions".equalsIgnoreCase(name)) {
+								extensions.addAll(values);
+							}
+						});
+					}
+				}).build();
+		URI uri = URI.create("ws://localhost:" + server.getEnvironment().getProperty("local.server.port") + "/chat");
+		Session session = ContainerProvider.getWebSocketContainer().connectToServer(new Endpoint() {
+			@Override
+			public void onOpen(Session session, EndpointConfig config) {
+			}
+		}, config, uri);
+		try {
+			assertEquals(subprotocols.length == 0 ? "" : subprotocols[0], session.getNegotiatedSubprotocol());
+		} finally {
+			session.close();
+		}
+		return extensions;
+	}
+
+	@Test
+	public void givenCompressionOn_whenClientOffersPerMessageDeflate_thenItIsNegotiated() throws Exception {
+		List<String> extensions = negotiate(compressing);
+
+		assertEquals(1, extensions.size());
+		assertTrue(extensions.get(0).startsWith("permessage-deflate"));
+	}
+
+	@Test
+	public void givenCompressionOff_whenClientOffersPerMessageDeflate_thenItIsNotNegotiated() throws Exception {
+		assertTrue(negotiate(notCompressing).isEmpty());
+	}
+
+	@Test
+	public void givenCompressionOn_whenClientAsksForDeflateSubprotocol_thenPerMessageDeflateIsNotNegotiated()
+			throws Exception {
+		assertTrue(negotiate(compressing, DeflateProtocol.SUBPROTOCOL).isEmpty());
+	}
+}
@@ -2,8 +2,13 @@ package es.sidelab.webchat;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -54,4 +59,91 @@ public class CreateChatTimeoutTest {
 		assertThat(newRegisteredChat.getName(), is(equalTo("new chat to register")));
 
 	}
+
+	@Test
+	public void givenManagerWithMaxChatsRegistered_whenSeveralAsyncCreationsWait_thenTheyAreServedInArrivalOrder()
+			throws Throwable {
+
+		// Given
+		ChatManager manager = new ChatManager(1);
+		Chat preRegisteredChat = manager.newChat("pre-registered chat", 1, TimeUnit.SECONDS);
+
+		CompletableFuture<Chat> first = manager.newChatAsync("first", 5, TimeUnit.SECONDS);
+		CompletableFuture<Chat> second = manager.newChatAsync("second", 5, TimeUnit.SECONDS);
+
+		// When
+		manager.closeChat(preRegisteredChat);
+
+		// Then
+		assertThat(first.get(1, TimeUnit.SECONDS).getName(), is(equalTo("first")));
+		assertFalse(second.isDone());
+
+		manager.closeChat(first.get());
+		assertThat(second.get(1, TimeUnit.SECONDS).getName(), is(equalTo("second")));
+	}
+
+	@Test
+	public void givenWaitingAsyncCreation_whenItIsCancelled_thenCapacityGoesToTheNextWaiter() throws Throwable {
+
+		// Given
+		ChatManager manager = new ChatManager(1);
+		Chat preRegisteredChat = manager.newChat("pre-registered chat", 1, TimeUnit.SECONDS);
+
+		CompletableFuture<Chat> cancelled = manager.newChatAsync("cancelled", 5, TimeUnit.SECONDS);
+		CompletableFuture<Chat> next = manager.newChatAsync("next", 5, TimeUnit.SECONDS);
+
+		// When
+		assertTrue(cancelled.cancel(false));
+		manager.closeChat(preRegisteredChat);
+
+		// Then
+		assertThat(next.get(1, TimeUnit.SECONDS).getName(), is(equalTo("next")));
+		assertNull(manager.getChat("cancelled"));
+	}
+
+	@Test
+	public void givenWaitingAsyncCreation_whenCancelledWhileCapacityIsGranted_thenNoChatKeepsTheCapacity()
+			throws Throwable {
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		for (int i = 0; i < 200; i++) {
+
+			// Given
+			ChatManager manager = new ChatManager(1);
+			Chat preRegisteredChat = manager.newChat("pre-registered chat", 1, TimeUnit.SECONDS);
+			CompletableFuture<Chat> cancelled = manager.newChatAsync("cancelled", 5, TimeUnit.SECONDS);
+
+			// When
+			Future<?> closing = executor.submit(() -> manager.closeChat(preRegisteredChat));
+			boolean gaveUp = cancelled.cancel(false);
+			closing.get();
+
+			// Then
+			if (gaveUp) {
+				assertNull(manager.getChat("cancelled"));
+				assertThat(manager.newChat("next", 1, TimeUnit.SECONDS).getName(), is(equalTo("next")));
+			} else {
+				assertThat(cancelled.get().getName(), is(equalTo("cancelled")));
+			}
+			manager.close();
+		}
+		executor.shutdown();
+	}
+
+	@Test(expected = TimeoutException.class)
+	public void givenManagerWithMaxChatsRegistered_whenAsyncCreationTimesOut_thenFutureFailsWithTimeout()
+			throws Throwable {
+
+		ChatManager manager = new ChatManager(1);
+		manager.newChat("pre-registered chat", 1, TimeUnit.SECONDS);
+
+		CompletableFuture<Chat> chat = manager.newChatAsync("new chat to register", 200, TimeUnit.MILLISECONDS);
+
+		try {
+			chat.get(2, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			throw e.getCause();
+		}
+	}
 }
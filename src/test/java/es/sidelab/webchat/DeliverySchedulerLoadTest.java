@@ -0,0 +1,65 @@
+package es.sidelab.webchat;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DeliveryScheduler;
+import es.codeurjc.webchat.User;
+
+public class DeliverySchedulerLoadTest {
+
+	private static final int WORKERS = 4;
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	@Test
+	public void givenThousandsOfRegisteredUsers_whenMessagesBroadcast_thenThreadCountStaysFlat()
+			throws InterruptedException, TimeoutException {
+
+		DeliveryScheduler scheduler = new DeliveryScheduler(WORKERS);
+		ChatManager manager = new ChatManager(1, scheduler);
+		Chat chat = manager.newChat("crowded chat", 5, TimeUnit.SECONDS);
+
+		int numberOfUsers = 5000;
+		int threadsBefore = threads.getThreadCount();
+
+		CountDownLatch delivered = new CountDownLatch(numberOfUsers);
+		for (int i = 0; i < numberOfUsers; i++) {
+			User user = new TestUser("user " + i) {
+				@Override
+				public void newMessage(Chat chat, User user, String message) {
+					delivered.countDown();
+				}
+
+				@Override
+				public void newUserInChat(Chat chat, User user) {
+				}
+			};
+			manager.newUser(user);
+			chat.addUser(user);
+		}
+
+		try {
+			chat.sendMessage(manager.getUser("user 0"), "hello everybody");
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+
+		assertTrue("Timed out waiting for the broadcast", delivered.await(30, TimeUnit.SECONDS));
+
+		int threadsAfter = threads.getThreadCount();
+		assertTrue("Expected at most " + WORKERS + " new threads, but " + (threadsAfter - threadsBefore)
+				+ " were started", threadsAfter - threadsBefore <= WORKERS);
+
+		scheduler.shutdown();
+	}
+}
@@ -0,0 +1,62 @@
+package es.sidelab.webchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import es.codeurjc.webchat.HashRing;
+
+public class HashRingTest {
+
+	private static final int CHATS = 10000;
+
+	@Test
+	public void givenFourNodes_whenChatsAreAssigned_thenEachOwnsAboutAQuarter() {
+		HashRing ring = new HashRing(Arrays.asList("a", "b", "c", "d"));
+
+		Map<String, Integer> owned = new HashMap<>();
+		for (int i = 0; i < CHATS; i++) {
+			owned.merge(ring.ownerOf("chat" + i), 1, Integer::sum);
+		}
+
+		assertEquals(4, owned.size());
+		for (int count : owned.values()) {
+			assertTrue("Owned " + count, count > CHATS / 4 * 0.7 && count < CHATS / 4 * 1.3);
+		}
+	}
+
+	@Test
+	public void givenANodeJoins_whenChatsAreAssigned_thenOnlyAboutItsShareMovesAndAllToIt() {
+		HashRing before = new HashRing(Arrays.asList("a", "b", "c", "d"));
+		HashRing after = new HashRing(Arrays.asList("a", "b", "c", "d", "e"));
+
+		int moved = 0;
+		for (int i = 0; i < CHATS; i++) {
+			String owner = after.ownerOf("chat" + i);
+			if (!owner.equals(before.ownerOf("chat" + i))) {
+				assertEquals("e", owner);
+				moved++;
+			}
+		}
+
+		assertTrue("Moved " + moved, moved > CHATS / 5 * 0.7 && moved < CHATS / 5 * 1.3);
+	}
+
+	@Test
+	public void givenTheSameNodesInAnotherOrder_whenChatsAreAssigned_thenOwnersAreTheSame() {
+		HashRing ring = new HashRing(Arrays.asList("a", "b", "c"));
+		HashRing reordered = new HashRing(Arrays.asList("c", "a", "b"));
+
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(ring.ownerOf("chat" + i), reordered.ownerOf("chat" + i));
+		}
+		assertNull(new HashRing(Collections.emptySet()).ownerOf("chat"));
+	}
+}
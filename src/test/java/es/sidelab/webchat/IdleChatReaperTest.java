@@ -0,0 +1,96 @@
+package es.sidelab.webchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DeliveryScheduler;
+
+public class IdleChatReaperTest {
+
+	private static final long TTL_MILLIS = 200;
+
+	private DeliveryScheduler scheduler = new DeliveryScheduler(2);
+
+	private ChatManager chatManager = new ChatManager(1, scheduler, TTL_MILLIS, TimeUnit.MILLISECONDS);
+
+	@After
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	private void awaitClosed(String chatName) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (chatManager.getChat(chatName) != null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void givenEmptyChat_whenTtlExpires_thenChatIsClosedAndCapacityReclaimed() throws Throwable {
+		Chat chat = chatManager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		awaitClosed("chat");
+
+		assertNull(chatManager.getChat("chat"));
+		Chat other = chatManager.newChat("other", 1, TimeUnit.SECONDS);
+		assertNotSame(chat, other);
+	}
+
+	@Test
+	public void givenChatWithMembers_whenTtlExpires_thenChatIsKept() throws Throwable {
+		Chat chat = chatManager.newChat("chat", 5, TimeUnit.SECONDS);
+		TestUser user = new TestUser("user");
+		chatManager.newUser(user);
+		chat.addUser(user);
+
+		Thread.sleep(TTL_MILLIS * 3);
+
+		assertSame(chat, chatManager.getChat("chat"));
+	}
+
+	@Test
+	public void givenChatThatBecomesEmpty_whenTtlExpires_thenChatIsClosed() throws Throwable {
+		Chat chat = chatManager.newChat("chat", 5, TimeUnit.SECONDS);
+		TestUser user = new TestUser("user");
+		chatManager.newUser(user);
+		chat.addUser(user);
+		Thread.sleep(TTL_MILLIS * 2);
+
+		chat.removeUser(user);
+		assertSame(chat, chatManager.getChat("chat"));
+
+		awaitClosed("chat");
+		assertNull(chatManager.getChat("chat"));
+	}
+
+	@Test
+	public void givenDisabledTtl_whenChatStaysEmpty_thenChatIsKept() throws Throwable {
+		ChatManager keepingManager = new ChatManager(1, scheduler);
+		Chat chat = keepingManager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		Thread.sleep(TTL_MILLIS * 3);
+
+		assertSame(chat, keepingManager.getChat("chat"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void givenReapedChat_whenUserJoins_thenJoinIsRejected() throws Throwable {
+		Chat chat = chatManager.newChat("chat", 5, TimeUnit.SECONDS);
+		TestUser user = new TestUser("user");
+		chatManager.newUser(user);
+
+		awaitClosed("chat");
+		assertEquals(0, chat.getUsers().size());
+
+		chat.addUser(user);
+	}
+}
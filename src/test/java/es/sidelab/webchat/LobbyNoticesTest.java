@@ -0,0 +1,78 @@
+package es.sidelab.webchat;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DeliveryScheduler;
+import es.codeurjc.webchat.User;
+
+public class LobbyNoticesTest {
+
+	private DeliveryScheduler scheduler = new DeliveryScheduler(2);
+
+	private ChatManager manager = new ChatManager(10, scheduler);
+
+	@After
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void givenUserNotInLobby_whenChatCreatedAndClosed_thenUserIsNotNotified() throws Throwable {
+		User subscriber = spy(new TestUser("subscriber"));
+		User outsider = spy(new TestUser("outsider"));
+		manager.newUser(subscriber);
+		manager.newUser(outsider, false);
+
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+		chat.close();
+
+		verify(subscriber, timeout(1000)).newChat(chat);
+		verify(subscriber, timeout(1000)).chatClosed(chat);
+		verify(outsider, after(300).never()).newChat(any(Chat.class));
+		verify(outsider, never()).chatClosed(any(Chat.class));
+	}
+
+	@Test
+	public void givenUserUnsubscribed_whenChatCreated_thenUserIsNotNotified() throws Throwable {
+		User user = spy(new TestUser("user"));
+		manager.newUser(user);
+		assertTrue(manager.isSubscribedToLobby(user));
+
+		manager.unsubscribeFromLobby(user);
+		assertFalse(manager.isSubscribedToLobby(user));
+		manager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		verify(user, after(300).never()).newChat(any(Chat.class));
+	}
+
+	@Test
+	public void givenNoticeWindow_whenChatCreatedAndClosedWithinIt_thenNeitherIsAnnounced() throws Throwable {
+		manager.setLobbyNoticeWindow(200, TimeUnit.MILLISECONDS);
+		User user = spy(new TestUser("user"));
+		manager.newUser(user);
+
+		Chat shortLived = manager.newChat("short lived", 5, TimeUnit.SECONDS);
+		shortLived.close();
+		Chat kept = manager.newChat("kept", 5, TimeUnit.SECONDS);
+
+		verify(user, timeout(1000)).newChat(kept);
+		verify(user, after(300).never()).newChat(shortLived);
+		verify(user, never()).chatClosed(any(Chat.class));
+		verify(user, times(1)).newChat(any(Chat.class));
+	}
+}
@@ -0,0 +1,100 @@
+package es.sidelab.webchat;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DeliveryScheduler;
+import es.codeurjc.webchat.RosterController;
+import es.codeurjc.webchat.RosterController.RosterPage;
+import es.codeurjc.webchat.User;
+
+public class MembershipViewTest {
+
+	private DeliveryScheduler scheduler = new DeliveryScheduler(2);
+	private ChatManager manager = new ChatManager(1, scheduler);
+	private Chat chat;
+
+	@Before
+	public void createChat() throws Exception {
+		chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+	}
+
+	@After
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	private User join(String name) {
+		User user = new TestUser(name);
+		manager.newUser(user);
+		chat.addUser(user);
+		return user;
+	}
+
+	private static List<String> names(Collection<User> users) {
+		return users.stream().map(User::getName).collect(toList());
+	}
+
+	@Test
+	public void givenUsersView_whenMembershipChanges_thenViewReflectsIt() {
+		Collection<User> members = chat.getUsers();
+		Collection<User> registered = manager.getUsers();
+
+		User alice = join("alice");
+		join("bob");
+		assertEquals(2, members.size());
+		assertEquals(2, registered.size());
+
+		chat.removeUser(alice);
+		assertEquals(Arrays.asList("bob"), names(members));
+	}
+
+	@Test
+	public void givenSnapshot_whenMembershipChanges_thenSnapshotIsUnchanged() {
+		join("alice");
+		List<User> snapshot = chat.getUsersSnapshot();
+
+		join("bob");
+
+		assertEquals(Arrays.asList("alice"), names(snapshot));
+	}
+
+	@Test
+	public void whenUserIsMissing_thenGetUserReturnsNull() {
+		assertNull(chat.getUser("nobody"));
+		assertNull(manager.getUser("nobody"));
+	}
+
+	@Test
+	public void givenLargeChat_whenPagingRoster_thenEveryMemberIsListedOnceInOrder() {
+		for (String name : Arrays.asList("dave", "alice", "erin", "carol", "bob")) {
+			join(name);
+		}
+		RosterController roster = new RosterController(manager);
+
+		RosterPage first = roster.getRoster("chat", null, 2).getBody();
+		RosterPage second = roster.getRoster("chat", first.getNext(), 2).getBody();
+		RosterPage last = roster.getRoster("chat", second.getNext(), 2).getBody();
+
+		assertEquals(5, first.getTotal());
+		assertEquals("alice", first.getUsers().get(0).getName());
+		assertEquals("bob", first.getNext());
+		assertEquals("carol", second.getUsers().get(0).getName());
+		assertEquals("dave", second.getNext());
+		assertEquals(1, last.getUsers().size());
+		assertEquals("erin", last.getUsers().get(0).getName());
+		assertNull(last.getNext());
+	}
+}
@@ -0,0 +1,262 @@
+package es.sidelab.webchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DeliveryScheduler;
+import es.codeurjc.webchat.LoggedMessage;
+import es.codeurjc.webchat.MessageLog;
+import es.codeurjc.webchat.User;
+
+public class MessageLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DeliveryScheduler scheduler = new DeliveryScheduler(2);
+
+	private MessageLog messageLog;
+
+	@After
+	public void shutdown() {
+		scheduler.shutdown();
+		if (messageLog != null) {
+			messageLog.close();
+		}
+	}
+
+	@Test
+	public void givenMessagesAppended_whenReadLast_thenNewestAreReturnedInOrder() throws Throwable {
+		messageLog = new MessageLog(folder.getRoot(), 4096, 4096, 0, TimeUnit.HOURS);
+		User user = new TestUser("user");
+		for (int i = 0; i < 10; i++) {
+			messageLog.append("chat", user, "message " + i);
+		}
+
+		List<LoggedMessage> last = messageLog.readLast("chat", 3);
+
+		assertEquals(3, last.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(7 + i, last.get(i).getOffset());
+			assertEquals("message " + (7 + i), last.get(i).getMessage());
+			assertEquals("user", last.get(i).getUserName());
+		}
+		assertEquals(0, messageLog.readLast("other chat", 3).size());
+	}
+
+	@Test
+	public void givenLogClosed_whenReopened_thenMessagesAreRecovered() throws Throwable {
+		messageLog = new MessageLog(folder.getRoot(), 1024, 8192, 0, TimeUnit.HOURS);
+		User user = new TestUser("user");
+		for (int i = 0; i < 50; i++) {
+			messageLog.append("chat", user, "message " + i);
+		}
+		messageLog.close();
+
+		messageLog = new MessageLog(folder.getRoot(), 1024, 8192, 0, TimeUnit.HOURS);
+		messageLog.append("chat", user, "after restart");
+		List<LoggedMessage> last = messageLog.readLast("chat", 51);
+
+		assertEquals(51, last.size());
+		for (int i = 0; i < 50; i++) {
+			assertEquals("message " + i, last.get(i).getMessage());
+		}
+		assertEquals(50, last.get(50).getOffset());
+		assertEquals("after restart", last.get(50).getMessage());
+	}
+
+	@Test
+	public void givenRecordCorruptedOnDisk_whenReopened_thenRecordsBeforeItAreRecovered() throws Throwable {
+		messageLog = new MessageLog(folder.getRoot(), 4096, 8192, 0, TimeUnit.HOURS);
+		User user = new TestUser("user");
+		for (int i = 0; i < 10; i++) {
+			messageLog.append("chat", user, "message " + i);
+		}
+		messageLog.close();
+		List<File> segments = segmentFiles(folder.getRoot());
+		assertEquals(1, segments.size());
+		byte[] bytes = Files.readAllBytes(segments.get(0).toPath());
+		int position = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("message 6");
+		bytes[position + 8] = 'X';
+		Files.write(segments.get(0).toPath(), bytes);
+
+		messageLog = new MessageLog(folder.getRoot(), 4096, 8192, 0, TimeUnit.HOURS);
+		messageLog.append("chat", user, "after restart");
+		List<LoggedMessage> last = messageLog.readLast("chat", 20);
+
+		assertEquals(7, last.size());
+		for (int i = 0; i < 6; i++) {
+			assertEquals("message " + i, last.get(i).getMessage());
+		}
+		assertEquals(6, last.get(6).getOffset());
+		assertEquals("after restart", last.get(6).getMessage());
+	}
+
+	@Test
+	public void givenSegmentSizeChanged_whenReopened_thenMessagesAreRecovered() throws Throwable {
+		messageLog = new MessageLog(folder.getRoot(), 1024, 8192, 0, TimeUnit.HOURS);
+		User user = new TestUser("user");
+		for (int i = 0; i < 50; i++) {
+			messageLog.append("chat", user, "message " + i);
+		}
+		messageLog.close();
+
+		messageLog = new MessageLog(folder.getRoot(), 4096, 8192, 0, TimeUnit.HOURS);
+		messageLog.append("chat", user, "after restart");
+		List<LoggedMessage> last = messageLog.readLast("chat", 51);
+
+		assertEquals(51, last.size());
+		for (int i = 0; i < 50; i++) {
+			assertEquals("message " + i, last.get(i).getMessage());
+		}
+		assertEquals("after restart", last.get(50).getMessage());
+	}
+
+	@Test
+	public void givenHistoryLargerThanRetention_whenRetentionRuns_thenOldestSegmentsAreDropped() throws Throwable {
+		messageLog = new MessageLog(folder.getRoot(), 1024, 2048, 0, TimeUnit.HOURS);
+		User user = new TestUser("user");
+		for (int i = 0; i < 500; i++) {
+			messageLog.append("chat", user, "message " + i);
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		List<LoggedMessage> kept = messageLog.readLast("chat", 500);
+		while (kept.get(0).getOffset() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(100);
+			kept = messageLog.readLast("chat", 500);
+		}
+
+		assertTrue("Oldest messages should be dropped", kept.get(0).getOffset() > 0);
+		assertTrue("At least one segment should be kept", kept.size() > 10);
+		assertEquals(499, kept.get(kept.size() - 1).getOffset());
+	}
+
+	@Test
+	public void givenChatWithHistory_whenUserJoins_thenLastMessagesAreReplayedBeforeNewOnes() throws Throwable {
+		messageLog = new MessageLog(folder.getRoot(), 4096, 4096, 0, TimeUnit.HOURS);
+		ChatManager manager = new ChatManager(10, scheduler);
+		manager.setMessageLog(messageLog, 2);
+		User author = new TestUser("author");
+		User joining = spy(new TestUser("joining"));
+		manager.newUser(author);
+		manager.newUser(joining);
+
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+		chat.addUser(author);
+		chat.sendMessage(author, "first");
+		chat.sendMessage(author, "second");
+		chat.sendMessage(author, "third");
+		chat.addUser(joining);
+		chat.sendMessage(author, "fourth");
+
+		verify(joining, timeout(1000)).newMessage(eq(chat), any(User.class), eq("fourth"));
+		InOrder inOrder = inOrder(joining);
+		inOrder.verify(joining).newMessage(eq(chat), any(User.class), eq("second"));
+		inOrder.verify(joining).newMessage(eq(chat), any(User.class), eq("third"));
+		inOrder.verify(joining).newMessage(eq(chat), any(User.class), eq("fourth"));
+		verify(joining, after(300).times(3)).newMessage(eq(chat), any(User.class), anyString());
+		assertEquals(4, chat.getHistory(10).size());
+	}
+
+	@Test
+	public void givenMessageLargerThanASegment_whenWritten_thenLaterMessagesKeepTheirOffsets() throws Throwable {
+		messageLog = new MessageLog(folder.getRoot(), 1024, 8192, 0, TimeUnit.HOURS);
+		User user = new TestUser("user");
+		StringBuilder tooLong = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			tooLong.append('x');
+		}
+		messageLog.append("chat", user, "before");
+		messageLog.append("chat", user, tooLong.toString());
+		messageLog.append("chat", user, "after");
+		messageLog.append("chat", user, "last");
+		awaitNoOpenChatLogs();
+
+		List<LoggedMessage> last = messageLog.readLast("chat", 10);
+
+		assertEquals(4, last.size());
+		for (int i = 0; i < 4; i++) {
+			assertEquals(i, last.get(i).getOffset());
+		}
+		assertEquals("before", last.get(0).getMessage());
+		assertEquals("", last.get(1).getMessage());
+		assertEquals("after", last.get(2).getMessage());
+		assertEquals("last", last.get(3).getMessage());
+	}
+
+	@Test
+	public void givenChatClosed_whenItsMessagesAreWritten_thenItsLogIsClosedUntilTheChatIsCreatedAgain()
+			throws Throwable {
+		messageLog = new MessageLog(folder.getRoot(), 4096, 4096, 0, TimeUnit.HOURS);
+		ChatManager manager = new ChatManager(10, scheduler);
+		manager.setMessageLog(messageLog, 10);
+		User author = new TestUser("author");
+		manager.newUser(author);
+
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+		chat.addUser(author);
+		chat.sendMessage(author, "first");
+		chat.sendMessage(author, "second");
+		assertEquals(1, messageLog.getOpenChatLogs());
+		manager.closeChat(chat);
+		awaitNoOpenChatLogs();
+
+		Chat reopened = manager.newChat("chat", 5, TimeUnit.SECONDS);
+		reopened.addUser(author);
+		reopened.sendMessage(author, "third");
+
+		List<LoggedMessage> history = reopened.getHistory(10);
+		assertEquals(3, history.size());
+		assertEquals("first", history.get(0).getMessage());
+		assertEquals(2, history.get(2).getOffset());
+		assertEquals("third", history.get(2).getMessage());
+		assertEquals(1, messageLog.getOpenChatLogs());
+	}
+
+	private static List<File> segmentFiles(File directory) {
+		List<File> segments = new ArrayList<>();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					segments.addAll(segmentFiles(file));
+				} else if (file.getName().endsWith(".log")) {
+					segments.add(file);
+				}
+			}
+		}
+		return segments;
+	}
+
+	private void awaitNoOpenChatLogs() throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (messageLog.getOpenChatLogs() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, messageLog.getOpenChatLogs());
+	}
+}
@@ -0,0 +1,169 @@
+package es.sidelab.webchat;
+
+import static es.sidelab.webchat.TestUser.named;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DeliveryScheduler;
+import es.codeurjc.webchat.RecordedUser;
+import es.codeurjc.webchat.User;
+
+public class RecentMessagesTest {
+
+	private DeliveryScheduler scheduler = new DeliveryScheduler(2);
+
+	private ChatManager manager = new ChatManager(10, scheduler);
+
+	@After
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void givenMoreMessagesThanKept_whenUserJoins_thenOnlyTheLatestAreSentInOrder() throws Throwable {
+		manager.setRecentMessages(3, 100);
+		User author = new TestUser("author");
+		User joining = spy(new TestUser("joining"));
+		manager.newUser(author);
+		manager.newUser(joining);
+
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+		chat.addUser(author);
+		for (int i = 0; i < 5; i++) {
+			chat.sendMessage(author, "message " + i);
+		}
+		chat.addUser(joining);
+		chat.sendMessage(author, "live");
+
+		verify(joining, timeout(1000)).newMessage(eq(chat), any(User.class), eq("live"));
+		InOrder inOrder = inOrder(joining);
+		inOrder.verify(joining).newMessage(eq(chat), named(author), eq("message 2"));
+		inOrder.verify(joining).newMessage(eq(chat), named(author), eq("message 3"));
+		inOrder.verify(joining).newMessage(eq(chat), named(author), eq("message 4"));
+		inOrder.verify(joining).newMessage(eq(chat), named(author), eq("live"));
+		verify(joining, after(300).never()).newMessage(eq(chat), named(author), eq("message 1"));
+
+		// Kept messages do not hold on to their author
+		ArgumentCaptor<User> replayedAuthor = ArgumentCaptor.forClass(User.class);
+		verify(joining).newMessage(eq(chat), replayedAuthor.capture(), eq("message 2"));
+		assertTrue(replayedAuthor.getValue() instanceof RecordedUser);
+	}
+
+	@Test
+	public void givenTotalUsedUp_whenChatCreated_thenItKeepsNothingUntilAnotherCloses() throws Throwable {
+		manager.setRecentMessages(2, 3);
+		User author = new TestUser("author");
+		manager.newUser(author);
+
+		Chat first = manager.newChat("first", 5, TimeUnit.SECONDS);
+		Chat second = manager.newChat("second", 5, TimeUnit.SECONDS);
+		Chat third = manager.newChat("third", 5, TimeUnit.SECONDS);
+		first.close();
+		Chat fourth = manager.newChat("fourth", 5, TimeUnit.SECONDS);
+
+		for (Chat chat : new Chat[] { second, third, fourth }) {
+			chat.addUser(author);
+			chat.sendMessage(author, "one");
+			chat.sendMessage(author, "two");
+		}
+		User joining = spy(new TestUser("joining"));
+		manager.newUser(joining);
+		second.addUser(joining);
+		third.addUser(joining);
+		fourth.addUser(joining);
+
+		// The first chat took 2 slots, the second the 1 left, the third none
+		// and the fourth those the first handed back
+		verify(joining, timeout(1000)).newMessage(eq(second), named(author), eq("two"));
+		verify(joining, timeout(1000)).newMessage(eq(fourth), named(author), eq("one"));
+		verify(joining, timeout(1000)).newMessage(eq(fourth), named(author), eq("two"));
+		verify(joining, after(300).never()).newMessage(eq(second), named(author), eq("one"));
+		verify(joining, never()).newMessage(eq(third), any(User.class), anyString());
+	}
+
+	@Test
+	public void givenMessagesSentConcurrently_whenUserJoins_thenItGetsEachMessageOnce() throws Throwable {
+		int senders = 4;
+		int messagesPerSender = 200;
+		manager.setRecentMessages(senders * messagesPerSender, senders * messagesPerSender);
+		List<String> received = Collections.synchronizedList(new ArrayList<>());
+		User joining = new TestUser("joining") {
+			@Override
+			public void newMessage(Chat chat, User user, String message) {
+				received.add(message);
+			}
+		};
+		manager.newUser(joining);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		ExecutorService executor = Executors.newFixedThreadPool(senders);
+		List<Future<?>> sent = new ArrayList<>();
+		for (int s = 0; s < senders; s++) {
+			User author = new TestUser("author " + s);
+			manager.newUser(author);
+			chat.addUser(author);
+			sent.add(executor.submit(() -> {
+				for (int i = 0; i < messagesPerSender; i++) {
+					try {
+						chat.sendMessage(author, author.getName() + " message " + i);
+					} catch (Throwable e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}));
+		}
+		chat.addUser(joining);
+		for (Future<?> future : sent) {
+			future.get();
+		}
+		executor.shutdown();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (received.size() < senders * messagesPerSender && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(100);
+		assertEquals(senders * messagesPerSender, received.size());
+		assertEquals(senders * messagesPerSender, new HashSet<>(received).size());
+	}
+
+	@Test
+	public void givenNoRecentMessages_whenUserJoins_thenNothingIsSent() throws Throwable {
+		User author = new TestUser("author");
+		User joining = spy(new TestUser("joining"));
+		manager.newUser(author);
+		manager.newUser(joining);
+
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+		chat.addUser(author);
+		chat.sendMessage(author, "before");
+		chat.addUser(joining);
+
+		verify(joining, after(300).never()).newMessage(any(Chat.class), any(User.class), anyString());
+	}
+}
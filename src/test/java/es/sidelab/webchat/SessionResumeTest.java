@@ -0,0 +1,110 @@
+package es.sidelab.webchat;
+
+import static es.sidelab.webchat.TestUser.named;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DeliveryScheduler;
+import es.codeurjc.webchat.User;
+
+public class SessionResumeTest {
+
+	private DeliveryScheduler scheduler = new DeliveryScheduler(2);
+
+	private ChatManager manager = new ChatManager(10, scheduler);
+
+	@After
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void givenDetachedUser_whenResumedWithLastSequence_thenOnlyMissedMessagesAreSent() throws Throwable {
+		manager.setRecentMessages(10, 100);
+		manager.setDetachedUserGracePeriod(5, TimeUnit.SECONDS);
+		User author = spy(new TestUser("author"));
+		User dropped = new TestUser("dropped");
+		manager.newUser(author);
+		manager.newUser(dropped);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+		chat.addUser(author);
+		chat.addUser(dropped);
+		chat.sendMessage(author, "seen");
+
+		manager.detachUser(dropped);
+		chat.sendMessage(author, "missed 1");
+		chat.sendMessage(author, "missed 2");
+		User reconnected = spy(new TestUser("dropped"));
+		assertTrue(manager.resumeUser(reconnected, false, Collections.singletonMap("chat", 0L)));
+		chat.sendMessage(author, "live");
+
+		verify(reconnected, timeout(1000)).newMessage(eq(chat), named(author), eq("live"));
+		InOrder inOrder = inOrder(reconnected);
+		inOrder.verify(reconnected).newMessage(eq(chat), named(author), eq("missed 1"));
+		inOrder.verify(reconnected).newMessage(eq(chat), named(author), eq("missed 2"));
+		inOrder.verify(reconnected).newMessage(eq(chat), named(author), eq("live"));
+		verify(reconnected, never()).newMessage(eq(chat), named(author), eq("seen"));
+		assertSame(reconnected, chat.getUser("dropped"));
+		verify(author, after(300).never()).userExitedFromChat(any(Chat.class), any(User.class));
+		verify(author, never()).newUserInChat(chat, reconnected);
+	}
+
+	@Test
+	public void givenDetachedUser_whenGracePeriodEnds_thenItLeavesItsChats() throws Throwable {
+		manager.setDetachedUserGracePeriod(200, TimeUnit.MILLISECONDS);
+		User member = spy(new TestUser("member"));
+		User dropped = new TestUser("dropped");
+		manager.newUser(member);
+		manager.newUser(dropped);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+		chat.addUser(member);
+		chat.addUser(dropped);
+
+		manager.detachUser(dropped);
+
+		verify(member, timeout(1000)).userExitedFromChat(chat, dropped);
+		assertFalse(manager.resumeUser(new TestUser("dropped"), false, Collections.emptyMap()));
+		// Members are told before the name is given back
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		while (manager.getUser("dropped") != null && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		manager.newUser(new TestUser("dropped"));
+	}
+
+	@Test
+	public void givenNoGracePeriod_whenUserDetached_thenItLeavesRightAway() throws Throwable {
+		User member = spy(new TestUser("member"));
+		User dropped = spy(new TestUser("dropped"));
+		manager.newUser(member);
+		manager.newUser(dropped);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+		chat.addUser(member);
+		chat.addUser(dropped);
+
+		manager.detachUser(dropped);
+		chat.sendMessage(member, "after");
+
+		verify(member, timeout(1000)).userExitedFromChat(chat, dropped);
+		verify(dropped, after(300).never()).newMessage(eq(chat), any(User.class), anyString());
+	}
+}
@@ -0,0 +1,164 @@
+package es.sidelab.webchat;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DeliveryScheduler;
+import es.codeurjc.webchat.OverflowPolicy;
+import es.codeurjc.webchat.User;
+import es.codeurjc.webchat.UserCallbackHandler;
+
+public class SlowConsumerTest {
+
+	private static final int QUEUE_CAPACITY = 3;
+
+	private final CountDownLatch consumerBlocked = new CountDownLatch(1);
+	private final CountDownLatch unblockConsumer = new CountDownLatch(1);
+	private final List<String> received = new CopyOnWriteArrayList<>();
+	private final List<String> joinedUsers = new CopyOnWriteArrayList<>();
+
+	private ChatManager manager;
+	private Chat chat;
+	private TestUser producer;
+	private TestUser consumer;
+
+	private void createChatWithStalledConsumer(OverflowPolicy policy) throws InterruptedException, TimeoutException {
+		manager = new ChatManager(1, new DeliveryScheduler(2, 1, false, QUEUE_CAPACITY, policy));
+		chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		producer = new TestUser("producer");
+		consumer = new TestUser("consumer") {
+			@Override
+			public void newMessage(Chat chat, User user, String message) {
+				consumerBlocked.countDown();
+				try {
+					unblockConsumer.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				received.add(message);
+			}
+
+			@Override
+			public void newUserInChat(Chat chat, User user) {
+				joinedUsers.add(user.getName());
+			}
+		};
+
+		manager.newUser(consumer);
+		manager.newUser(producer);
+		chat.addUser(consumer);
+		chat.addUser(producer);
+	}
+
+	// The first message blocks the consumer's worker, the rest pile up in its queue
+	private void sendMessages(int numberOfMessages) throws Throwable {
+		sendMessages(0, numberOfMessages);
+	}
+
+	private void sendMessages(int first, int end) throws Throwable {
+		for (int i = first; i < end; i++) {
+			chat.sendMessage(producer, String.valueOf(i));
+			if (i == 0) {
+				assertTrue(consumerBlocked.await(5, TimeUnit.SECONDS));
+			}
+		}
+	}
+
+	private UserCallbackHandler consumerHandler() {
+		return manager.getUserCallbackHandlerForUser(consumer);
+	}
+
+	private void awaitReceived(int numberOfMessages) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (received.size() < numberOfMessages && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void givenDropOldestPolicy_whenConsumerStalls_thenOldestMessagesAreDropped() throws Throwable {
+		createChatWithStalledConsumer(OverflowPolicy.DROP_OLDEST);
+
+		sendMessages(6);
+
+		assertEquals(QUEUE_CAPACITY, consumerHandler().getQueueDepth());
+		assertEquals(2, consumerHandler().getDroppedEvents());
+
+		unblockConsumer.countDown();
+		awaitReceived(4);
+
+		assertEquals(asList("0", "3", "4", "5"), received);
+	}
+
+	@Test
+	public void givenDropNewestPolicy_whenConsumerStalls_thenNewestMessagesAreDropped() throws Throwable {
+		createChatWithStalledConsumer(OverflowPolicy.DROP_NEWEST);
+
+		sendMessages(6);
+
+		assertEquals(QUEUE_CAPACITY, consumerHandler().getQueueDepth());
+		assertEquals(2, consumerHandler().getDroppedEvents());
+
+		unblockConsumer.countDown();
+		awaitReceived(4);
+
+		assertEquals(asList("0", "1", "2", "3"), received);
+	}
+
+	@Test
+	public void givenDefaultPolicy_whenConsumerStalls_thenSystemNoticesAreDroppedBeforeMessages() throws Throwable {
+		createChatWithStalledConsumer(DeliveryScheduler.DEFAULT_OVERFLOW_POLICY);
+		TestUser latecomer = new TestUser("latecomer");
+		manager.newUser(latecomer);
+
+		// Fills the queue with a message, a notice and another message
+		sendMessages(2);
+		chat.addUser(latecomer);
+		sendMessages(2, 3);
+
+		// The notice makes room for the first message, the oldest message for the next
+		sendMessages(3, 5);
+		// With no notice left to drop, a new one is discarded
+		chat.removeUser(latecomer);
+
+		assertEquals(QUEUE_CAPACITY, consumerHandler().getQueueDepth());
+		assertEquals(3, consumerHandler().getDroppedEvents());
+
+		unblockConsumer.countDown();
+		awaitReceived(4);
+
+		assertEquals(asList("0", "2", "3", "4"), received);
+		assertEquals(asList("producer"), joinedUsers);
+	}
+
+	@Test
+	public void givenDisconnectPolicy_whenConsumerStalls_thenConsumerIsDisconnectedAndQueueReleased() throws Throwable {
+		createChatWithStalledConsumer(OverflowPolicy.DISCONNECT);
+
+		sendMessages(6);
+
+		assertTrue(consumerHandler().isDisconnected());
+		assertEquals(0, consumerHandler().getQueueDepth());
+		assertEquals(5, consumerHandler().getDroppedEvents());
+
+		chat.sendMessage(producer, "after disconnection");
+		assertEquals(6, consumerHandler().getDroppedEvents());
+
+		unblockConsumer.countDown();
+		awaitReceived(1);
+
+		assertEquals(asList("0"), received);
+	}
+}
@@ -1,5 +1,9 @@
 package es.sidelab.webchat;
 
+import static org.mockito.Matchers.argThat;
+
+import org.mockito.ArgumentMatcher;
+
 import es.codeurjc.webchat.Chat;
 import es.codeurjc.webchat.User;
 
@@ -14,6 +18,24 @@ public class TestUser implements User {
 		this.isSorted = true;
 	}
 
+	/**
+	 * Matches any user with the name of the given one. Replayed messages come
+	 * from a copy of their author that only keeps its name and color.
+	 */
+	public static User named(User user) {
+		return argThat(new ArgumentMatcher<User>() {
+			@Override
+			public boolean matches(Object argument) {
+				return argument instanceof User && user.getName().equals(((User) argument).getName());
+			}
+
+			@Override
+			public String toString() {
+				return "User named " + user.getName();
+			}
+		});
+	}
+
 	@Override
 	public String getName() {
 		return this.name;
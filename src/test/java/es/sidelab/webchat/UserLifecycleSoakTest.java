@@ -0,0 +1,89 @@
+package es.sidelab.webchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DeliveryScheduler;
+import es.codeurjc.webchat.User;
+
+public class UserLifecycleSoakTest {
+
+	private static final int WORKERS = 4;
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	@Test
+	public void givenManyConnectDisconnectCycles_whenUsersAreRemoved_thenThreadsAndUsersAreReclaimed()
+			throws Throwable {
+
+		DeliveryScheduler scheduler = new DeliveryScheduler(WORKERS);
+		ChatManager manager = new ChatManager(10, scheduler);
+
+		TestUser resident = new TestUser("resident");
+		manager.newUser(resident);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+		chat.addUser(resident);
+
+		int threadsBefore = threads.getThreadCount();
+
+		int numberOfCycles = 5000;
+		List<WeakReference<User>> removedUsers = new ArrayList<>();
+
+		for (int i = 0; i < numberOfCycles; i++) {
+			// Every cycle reuses the same name, which must be available again
+			CountDownLatch delivered = new CountDownLatch(1);
+			TestUser user = new TestUser("visitor") {
+				@Override
+				public void newMessage(Chat chat, User user, String message) {
+					delivered.countDown();
+				}
+			};
+
+			manager.newUser(user);
+			manager.newChat("chat", 5, TimeUnit.SECONDS).addUser(user);
+			chat.sendMessage(user, "hello " + i);
+
+			assertTrue("Timed out waiting for delivery", delivered.await(5, TimeUnit.SECONDS));
+
+			manager.removeUser(user);
+			removedUsers.add(new WeakReference<>(user));
+		}
+
+		assertEquals(1, manager.getUsers().size());
+		assertEquals(1, chat.getUsers().size());
+		assertTrue("Expected at most " + WORKERS + " new threads",
+				threads.getThreadCount() - threadsBefore <= WORKERS + 1);
+
+		// Removed users must not be retained by the manager, chats or handlers
+		long deadline = System.currentTimeMillis() + 10000;
+		while (countAlive(removedUsers) > 0 && System.currentTimeMillis() < deadline) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		assertEquals("Removed users still reachable", 0, countAlive(removedUsers));
+
+		scheduler.shutdown();
+	}
+
+	private static int countAlive(List<WeakReference<User>> references) {
+		int alive = 0;
+		for (WeakReference<User> reference : references) {
+			if (reference.get() != null) {
+				alive++;
+			}
+		}
+		return alive;
+	}
+}
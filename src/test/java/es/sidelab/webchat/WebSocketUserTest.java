@@ -0,0 +1,440 @@
+package es.sidelab.webchat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+import es.codeurjc.webchat.BinaryProtocol;
+import es.codeurjc.webchat.Chat;
+import es.codeurjc.webchat.ChatManager;
+import es.codeurjc.webchat.DeflateProtocol;
+import es.codeurjc.webchat.DeliveryScheduler;
+import es.codeurjc.webchat.User;
+import es.codeurjc.webchat.WebSocketUser;
+
+public class WebSocketUserTest {
+
+	@Test
+	public void givenTwoWebSocketUsersInChat_whenMessageSent_thenBothSessionsGetTheSameFrame() throws Throwable {
+
+		ChatManager manager = new ChatManager(1);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		WebSocketSession firstSession = mock(WebSocketSession.class);
+		WebSocketSession secondSession = mock(WebSocketSession.class);
+		WebSocketUser first = new WebSocketUser(firstSession, "first", "007AFF");
+		WebSocketUser second = new WebSocketUser(secondSession, "second", "FF7000");
+
+		manager.newUser(first);
+		manager.newUser(second);
+		chat.addUser(first);
+		chat.addUser(second);
+
+		chat.sendMessage(first, "hello");
+
+		ArgumentCaptor<TextMessage> firstFrames = ArgumentCaptor.forClass(TextMessage.class);
+		ArgumentCaptor<TextMessage> secondFrames = ArgumentCaptor.forClass(TextMessage.class);
+		// The first user is also told that the second one joined
+		verify(firstSession, timeout(1000).times(2)).sendMessage(firstFrames.capture());
+		verify(secondSession, timeout(1000)).sendMessage(secondFrames.capture());
+
+		TextMessage firstFrame = firstFrames.getAllValues().get(1);
+		TextMessage secondFrame = secondFrames.getValue();
+
+		assertSame("Every recipient should get the same encoded frame", firstFrame, secondFrame);
+		assertTrue(firstFrame.getPayload().contains("\"message\":\"hello\""));
+	}
+
+	@Test
+	public void givenWebSocketUserWhoseSendFails_whenMessageSent_thenSessionIsClosedAndDeliveryStops() throws Throwable {
+
+		ChatManager manager = new ChatManager(1);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		WebSocketSession brokenSession = mock(WebSocketSession.class);
+		doThrow(new IOException("Broken pipe")).when(brokenSession).sendMessage(any());
+		WebSocketUser user = new WebSocketUser(brokenSession, "user", "007AFF");
+
+		manager.newUser(user);
+		chat.addUser(user);
+
+		chat.sendMessage(user, "hello");
+
+		verify(brokenSession, timeout(1000)).close(CloseStatus.SESSION_NOT_RELIABLE);
+		assertTrue(manager.getUserCallbackHandlerForUser(user).isDisconnected());
+	}
+
+	@Test
+	public void givenBinarySession_whenMessagesSent_thenNamesAreDefinedOnceAndReferencedAfterwards() throws Throwable {
+
+		ChatManager manager = new ChatManager(1);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		WebSocketSession session = mock(WebSocketSession.class);
+		when(session.getAcceptedProtocol()).thenReturn(BinaryProtocol.SUBPROTOCOL);
+		WebSocketUser reader = new WebSocketUser(session, "reader", "007AFF");
+		TestUser author = new TestUser("author");
+
+		manager.newUser(author);
+		manager.newUser(reader);
+		chat.addUser(author);
+		chat.addUser(reader);
+
+		chat.sendMessage(author, "one");
+		chat.sendMessage(author, "two");
+
+		ArgumentCaptor<WebSocketMessage<?>> frames = framesCaptor();
+		// Author name and color are defined before the first message only
+		verify(session, timeout(1000).times(4)).sendMessage(frames.capture());
+		List<WebSocketMessage<?>> sent = frames.getAllValues();
+
+		ByteBuffer nameDefinition = ((BinaryMessage) sent.get(0)).getPayload();
+		ByteBuffer colorDefinition = ((BinaryMessage) sent.get(1)).getPayload();
+		assertEquals(BinaryProtocol.DEFINE, nameDefinition.get());
+		int nameId = nameDefinition.get();
+		assertEquals("author", readString(nameDefinition));
+		assertEquals(BinaryProtocol.DEFINE, colorDefinition.get());
+		int colorId = colorDefinition.get();
+		assertEquals(author.getColor(), readString(colorDefinition));
+
+		for (int i = 2; i < 4; i++) {
+			ByteBuffer message = ((BinaryMessage) sent.get(i)).getPayload();
+			assertEquals(BinaryProtocol.MESSAGE, message.get());
+			assertEquals(nameId, message.get());
+			assertEquals(colorId, message.get());
+			// Sequence numbers are sent plus one
+			assertEquals(i - 1, message.get());
+			assertEquals(i == 2 ? "one" : "two", readString(message));
+		}
+	}
+
+	@Test
+	public void givenFewWireIdsPerChat_whenMoreAuthorsSend_thenIdsAreReusedAndDefinedAgain() throws Throwable {
+
+		ChatManager manager = new ChatManager(1);
+		manager.setWireIdsPerChat(2);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		WebSocketSession session = mock(WebSocketSession.class);
+		when(session.getAcceptedProtocol()).thenReturn(BinaryProtocol.SUBPROTOCOL);
+		WebSocketUser reader = new WebSocketUser(session, "reader", "007AFF");
+		TestUser first = new TestUser("first");
+		TestUser second = new TestUser("second");
+
+		manager.newUser(first);
+		manager.newUser(second);
+		manager.newUser(reader);
+		chat.addUser(first);
+		chat.addUser(second);
+		chat.addUser(reader);
+
+		chat.sendMessage(first, "one");
+		chat.sendMessage(second, "two");
+		chat.sendMessage(first, "three");
+
+		ArgumentCaptor<WebSocketMessage<?>> frames = framesCaptor();
+		// The color keeps its id, each name takes the one the other had
+		verify(session, timeout(1000).times(7)).sendMessage(frames.capture());
+
+		Map<Integer, String> defined = new HashMap<>();
+		List<String> authors = new ArrayList<>();
+		for (WebSocketMessage<?> frame : frames.getAllValues()) {
+			ByteBuffer payload = ((BinaryMessage) frame).getPayload();
+			byte type = payload.get();
+			int id = payload.get();
+			if (type == BinaryProtocol.DEFINE) {
+				assertTrue(id >= 1 && id <= 2);
+				defined.put(id, readString(payload));
+			} else {
+				assertEquals(BinaryProtocol.MESSAGE, type);
+				authors.add(defined.get(id));
+			}
+		}
+		assertEquals(Arrays.asList("first", "second", "first"), authors);
+	}
+
+	// Lengths below 128 take a single byte
+	private static String readString(ByteBuffer frame) {
+		byte[] bytes = new byte[frame.get()];
+		frame.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void givenDeflateSessions_whenLongMessageSent_thenEveryOneGetsTheSameCompressedFrame() throws Throwable {
+
+		ChatManager manager = new ChatManager(1);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		WebSocketSession firstSession = mock(WebSocketSession.class);
+		WebSocketSession secondSession = mock(WebSocketSession.class);
+		when(firstSession.getAcceptedProtocol()).thenReturn(DeflateProtocol.SUBPROTOCOL);
+		when(secondSession.getAcceptedProtocol()).thenReturn(DeflateProtocol.SUBPROTOCOL);
+		WebSocketUser first = new WebSocketUser(firstSession, "first", "007AFF");
+		WebSocketUser second = new WebSocketUser(secondSession, "second", "FF7000");
+		TestUser author = new TestUser("author");
+
+		manager.newUser(author);
+		manager.newUser(first);
+		manager.newUser(second);
+		chat.addUser(author);
+		chat.addUser(first);
+		chat.addUser(second);
+
+		String message = new String(new char[20]).replace("\0", "all work and no play ");
+		chat.sendMessage(author, message);
+
+		ArgumentCaptor<WebSocketMessage<?>> firstFrames = framesCaptor();
+		ArgumentCaptor<BinaryMessage> secondFrames = ArgumentCaptor.forClass(BinaryMessage.class);
+		// The first user is also told that the second one joined, a notice
+		// short enough to be sent as text
+		verify(firstSession, timeout(1000).times(2)).sendMessage(firstFrames.capture());
+		verify(secondSession, timeout(1000)).sendMessage(secondFrames.capture());
+
+		assertTrue(firstFrames.getAllValues().get(0) instanceof TextMessage);
+		byte[] firstFrame = bytesOf(((BinaryMessage) firstFrames.getAllValues().get(1)).getPayload());
+		byte[] secondFrame = bytesOf(secondFrames.getValue().getPayload());
+
+		assertArrayEquals(firstFrame, secondFrame);
+		assertTrue("Frame should be compressed", firstFrame.length < message.length() / 4);
+		String json = inflate(firstFrame);
+		assertTrue(json.startsWith("{\"name\":\"author\""));
+		assertTrue(json.contains("\"message\":\"" + message + "\""));
+	}
+
+	@Test
+	public void givenDeflateSession_whenMessageShorterThanMinLengthSent_thenItIsSentAsText() throws Throwable {
+
+		ChatManager manager = new ChatManager(1);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		WebSocketSession session = mock(WebSocketSession.class);
+		when(session.getAcceptedProtocol()).thenReturn(DeflateProtocol.SUBPROTOCOL);
+		WebSocketUser reader = new WebSocketUser(session, "reader", "007AFF");
+		reader.setDeflateMinLength(1000);
+		TestUser author = new TestUser("author");
+
+		manager.newUser(author);
+		manager.newUser(reader);
+		chat.addUser(author);
+		chat.addUser(reader);
+
+		chat.sendMessage(author, "hello");
+
+		ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+		verify(session, timeout(1000)).sendMessage(frames.capture());
+
+		assertTrue(frames.getValue().getPayload().contains("\"message\":\"hello\""));
+	}
+
+	// WebSocketMessage is generic, so a captor of it can only be made by a cast
+	@SuppressWarnings("unchecked")
+	private static ArgumentCaptor<WebSocketMessage<?>> framesCaptor() {
+		return (ArgumentCaptor<WebSocketMessage<?>>) (ArgumentCaptor<?>) ArgumentCaptor.forClass(WebSocketMessage.class);
+	}
+
+	private static byte[] bytesOf(ByteBuffer payload) {
+		byte[] bytes = new byte[payload.remaining()];
+		payload.get(bytes);
+		return bytes;
+	}
+
+	private static String inflate(byte[] frame) throws Exception {
+		Inflater inflater = new Inflater(true);
+		inflater.setDictionary(DeflateProtocol.DICTIONARY.getBytes(StandardCharsets.UTF_8));
+		inflater.setInput(frame);
+		byte[] out = new byte[4096];
+		int length = inflater.inflate(out);
+		inflater.end();
+		return new String(out, 0, length, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void givenAsyncRemote_whenSentWhileWriteInProgress_thenItIsWrittenAfterIt() throws Throwable {
+
+		ChatManager manager = new ChatManager(1);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		RemoteEndpoint.Async remote = mock(RemoteEndpoint.Async.class);
+		BlockingQueue<SendHandler> inProgress = recordSendHandlers(remote);
+		WebSocketSession session = sessionWithAsyncRemote(remote);
+		WebSocketUser reader = new WebSocketUser(session, "reader", "007AFF");
+		TestUser author = new TestUser("author");
+
+		manager.newUser(author);
+		manager.newUser(reader);
+		chat.addUser(author);
+		chat.addUser(reader);
+
+		chat.sendMessage(author, "hello");
+		SendHandler messageWrite = inProgress.poll(1, TimeUnit.SECONDS);
+
+		// Not started while the container is still writing the message
+		reader.newChat(chat);
+		verify(remote, after(200).times(1)).sendText(anyString(), any(SendHandler.class));
+
+		messageWrite.onResult(new SendResult());
+		inProgress.poll(1, TimeUnit.SECONDS).onResult(new SendResult());
+
+		ArgumentCaptor<String> frames = ArgumentCaptor.forClass(String.class);
+		verify(remote, times(2)).sendText(frames.capture(), any(SendHandler.class));
+		verify(remote, never()).flushBatch();
+		verify(session, never()).sendMessage(any());
+		assertTrue(frames.getAllValues().get(0).contains("\"message\":\"hello\""));
+		assertTrue(frames.getAllValues().get(1).contains("New chat 'chat'"));
+	}
+
+	@Test
+	public void givenAsyncRemote_whenWriteFails_thenSessionIsClosedAndWaitingWritesAreDropped() throws Throwable {
+
+		ChatManager manager = new ChatManager(1);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		RemoteEndpoint.Async remote = mock(RemoteEndpoint.Async.class);
+		BlockingQueue<SendHandler> inProgress = recordSendHandlers(remote);
+		WebSocketSession session = sessionWithAsyncRemote(remote);
+		WebSocketUser reader = new WebSocketUser(session, "reader", "007AFF");
+		TestUser author = new TestUser("author");
+
+		manager.newUser(author);
+		manager.newUser(reader);
+		chat.addUser(author);
+		chat.addUser(reader);
+
+		chat.sendMessage(author, "hello");
+		SendHandler messageWrite = inProgress.poll(1, TimeUnit.SECONDS);
+		reader.newChat(chat);
+
+		messageWrite.onResult(new SendResult(new IOException("Broken pipe")));
+
+		verify(session, timeout(1000)).close(CloseStatus.SESSION_NOT_RELIABLE);
+		assertTrue(manager.getUserCallbackHandlerForUser(reader).isDisconnected());
+		verify(remote, after(200).times(1)).sendText(anyString(), any(SendHandler.class));
+		verify(remote, never()).flushBatch();
+	}
+
+	@Test
+	public void givenPeerWhoseFlushBlocks_whenMessagesSent_thenOtherUsersStillGetThem() throws Throwable {
+
+		DeliveryScheduler scheduler = new DeliveryScheduler(1);
+		ChatManager manager = new ChatManager(1, scheduler);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		RemoteEndpoint.Async remote = mock(RemoteEndpoint.Async.class);
+		CountDownLatch peerResponds = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			((SendHandler) invocation.getArguments()[1]).onResult(new SendResult());
+			return null;
+		}).when(remote).sendText(anyString(), any(SendHandler.class));
+		doAnswer(invocation -> peerResponds.await(5, TimeUnit.SECONDS)).when(remote).flushBatch();
+		WebSocketUser stalled = new WebSocketUser(sessionWithAsyncRemote(remote), "stalled", "007AFF");
+		TestUser other = spy(new TestUser("other"));
+
+		try {
+			manager.newUser(stalled);
+			manager.newUser(other);
+			chat.addUser(stalled);
+			chat.addUser(other);
+
+			chat.sendMessage(other, "first");
+			verify(remote, timeout(1000).atLeastOnce()).sendText(anyString(), any(SendHandler.class));
+			chat.sendMessage(other, "second");
+
+			verify(other, timeout(1000)).newMessage(eq(chat), any(User.class), eq("second"));
+		} finally {
+			peerResponds.countDown();
+			scheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void givenContainerCompletingSendsInline_whenManyWritesQueued_thenAllAreSentWithoutNesting()
+			throws Throwable {
+
+		ChatManager manager = new ChatManager(1);
+		Chat chat = manager.newChat("chat", 5, TimeUnit.SECONDS);
+
+		RemoteEndpoint.Async remote = mock(RemoteEndpoint.Async.class);
+		BlockingQueue<SendHandler> held = new LinkedBlockingQueue<>();
+		AtomicInteger sent = new AtomicInteger();
+		doAnswer(invocation -> {
+			SendHandler handler = (SendHandler) invocation.getArguments()[1];
+			if (sent.getAndIncrement() == 0) {
+				held.add(handler);
+			} else {
+				handler.onResult(new SendResult());
+			}
+			return null;
+		}).when(remote).sendText(anyString(), any(SendHandler.class));
+		WebSocketUser reader = new WebSocketUser(sessionWithAsyncRemote(remote), "reader", "007AFF");
+		TestUser author = new TestUser("author");
+
+		int writes = 20000;
+		for (int i = 0; i < writes; i++) {
+			reader.newMessage(chat, author, "message " + i);
+		}
+		held.poll(1, TimeUnit.SECONDS).onResult(new SendResult());
+
+		assertEquals(writes, sent.get());
+	}
+
+	private static BlockingQueue<SendHandler> recordSendHandlers(RemoteEndpoint.Async remote) {
+		BlockingQueue<SendHandler> handlers = new LinkedBlockingQueue<>();
+		doAnswer(invocation -> handlers.add((SendHandler) invocation.getArguments()[1])).when(remote)
+				.sendText(anyString(), any(SendHandler.class));
+		return handlers;
+	}
+
+	private static WebSocketSession sessionWithAsyncRemote(RemoteEndpoint.Async remote) {
+		Session nativeSession = mock(Session.class);
+		when(nativeSession.getAsyncRemote()).thenReturn(remote);
+		WebSocketSession session = mock(WebSocketSession.class,
+				withSettings().extraInterfaces(NativeWebSocketSession.class));
+		when(((NativeWebSocketSession) session).getNativeSession(Session.class)).thenReturn(nativeSession);
+		return session;
+	}
+}